@@ -0,0 +1,74 @@
+package websocket;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Shared setup for the benchmarks: a config pointing at a throwaway SQLite file, and servers populated with
+// stub connections through the same commands a real client would send
+public final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    public static Path createTempDirectory() {
+        try {
+            return Files.createTempDirectory("tetrecs-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static ServerConfig config(Path directory) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setMetricsPort(0);
+        config.setDatabaseUrl("jdbc:sqlite:" + directory.resolve("scores.db"));
+        config.setSnapshotFile(directory.resolve("lobbies.snapshot").toString());
+        // No caps, so every lobby a benchmark builds has the size its parameters ask for
+        config.setMaxLobbies(0);
+        config.setMaxPlayersPerLobby(0);
+
+        return config;
+    }
+
+    // A lobby of the given size, every stub member joined through CREATE and JOIN. Every binaryEvery-th member
+    // negotiates BinaryProtocol (0 for none). Returns the members in join order
+    public static StubWebSocket[] lobby(LocalWebSocketServer server, String lobby, int size, int binaryEvery) {
+        StubWebSocket[] members = new StubWebSocket[size];
+
+        for (int i = 0; i < size; i++) {
+            members[i] = join(server, lobby, i, binaryEvery > 0 && i % binaryEvery == binaryEvery - 1);
+        }
+
+        Player first = server.getPlayerByConn(members[0]);
+        int joined = first != null ? first.getLobby().size() : 0;
+
+        if (joined != size) {
+            throw new IllegalStateException("Lobby " + lobby + " has " + joined + " of " + size + " members");
+        }
+
+        return members;
+    }
+
+    // Joins a new stub connection to the lobby, the first connection to a lobby creates it
+    public static StubWebSocket join(LocalWebSocketServer server, String lobby, int id, boolean binary) {
+        StubWebSocket conn = new StubWebSocket(id, binary);
+
+        if (id == 0) server.onMessage(conn, "CREATE " + lobby);
+        server.onMessage(conn, "JOIN " + lobby);
+
+        return conn;
+    }
+
+    public static void deleteDirectory(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Roster change and scores fan-out to one lobby. With binaryEvery set, that share of the members negotiated
+// BinaryProtocol, so scores snapshots are encoded in both forms
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class BroadcastBenchmark {
+
+    @Param({"2", "8", "64", "256"})
+    private int players;
+
+    @Param({"0", "2"})
+    private int binaryEvery;
+
+    private Path directory;
+
+    private LocalWebSocketServer server;
+
+    private Lobby lobby;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = BenchmarkFixtures.createTempDirectory();
+        server = new LocalWebSocketServer(BenchmarkFixtures.config(directory));
+
+        StubWebSocket[] members = BenchmarkFixtures.lobby(server, "bench", players, binaryEvery);
+
+        for (int i = 0; i < members.length; i++) {
+            server.onMessage(members[i], "SCORE " + (i * 100));
+        }
+
+        lobby = server.getPlayerByConn(members[0]).getLobby();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        server.shutdown();
+        BenchmarkFixtures.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void broadcastRosterChange() {
+        server.broadcastRosterChange(lobby, "USERNICK", "Player1\nPlayer1");
+    }
+
+    @Benchmark
+    public void broadcastScores() {
+        server.broadcastScores(lobby);
+    }
+}
@@ -0,0 +1,57 @@
+package websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// One text frame through onMessage, from dispatch to the reply or broadcast reaching the stub connections.
+// The sender is in a lobby of four, so broadcasting commands fan out to three other members
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class CommandDispatchBenchmark {
+
+    @Param({"Marco", "SCORE 1200", "LIVES 2", "PIECES 0", "MSG hello", "USERS", "LIST", "LIST 0 20 OPEN", "HISCORES",
+            "HISCORES 10 20", "RANK Player1"})
+    private String message;
+
+    private Path directory;
+
+    private LocalWebSocketServer server;
+
+    private StubWebSocket sender;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = BenchmarkFixtures.createTempDirectory();
+        server = new LocalWebSocketServer(BenchmarkFixtures.config(directory));
+        sender = BenchmarkFixtures.lobby(server, "bench", 4, 0)[0];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        server.shutdown();
+        BenchmarkFixtures.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void onMessage() {
+        server.onMessage(sender, message);
+    }
+}
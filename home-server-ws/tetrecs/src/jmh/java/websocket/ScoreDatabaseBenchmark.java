@@ -0,0 +1,87 @@
+package websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// ScoreDatabase against a temp SQLite file holding the given number of scores. upsertScore always raises the
+// score so every call is a real write, the reads pick their targets from a seeded generator
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class ScoreDatabaseBenchmark {
+
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"1000", "100000"})
+    private int rows;
+
+    private Path directory;
+
+    private ScoreDatabase database;
+
+    private SplittableRandom random;
+
+    private int nextScore;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = BenchmarkFixtures.createTempDirectory();
+        database = new ScoreDatabase(BenchmarkFixtures.config(directory));
+        random = new SplittableRandom(42);
+
+        Map<String, Integer> scores = new HashMap<>();
+
+        for (int i = 0; i < rows; i++) {
+            scores.put("player" + i, random.nextInt(1_000_000));
+        }
+
+        database.upsertScores(scores);
+        nextScore = 1_000_000;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+        BenchmarkFixtures.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public Boolean upsertScore() {
+        return database.upsertScore("player" + random.nextInt(rows), nextScore++);
+    }
+
+    @Benchmark
+    public String getScores() {
+        return database.getScores();
+    }
+
+    @Benchmark
+    public String getScoresPage() {
+        return database.getScores(random.nextInt(rows), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public String getRank() {
+        return database.getRank("player" + random.nextInt(rows), 2);
+    }
+}
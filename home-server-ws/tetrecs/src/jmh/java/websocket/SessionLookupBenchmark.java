@@ -0,0 +1,78 @@
+package websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// getPlayerByConn with the server holding more and more lobbies of four players. Connections are looked up in
+// a fixed shuffled order so every run probes the same sequence
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class SessionLookupBenchmark {
+
+    private static final int PLAYERS_PER_LOBBY = 4;
+
+    @Param({"1", "100", "10000"})
+    private int lobbies;
+
+    private Path directory;
+
+    private LocalWebSocketServer server;
+
+    private StubWebSocket[] connections;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        directory = BenchmarkFixtures.createTempDirectory();
+        server = new LocalWebSocketServer(BenchmarkFixtures.config(directory));
+        connections = new StubWebSocket[lobbies * PLAYERS_PER_LOBBY];
+
+        for (int i = 0; i < lobbies; i++) {
+            StubWebSocket[] members = BenchmarkFixtures.lobby(server, "lobby" + i, PLAYERS_PER_LOBBY, 0);
+
+            System.arraycopy(members, 0, connections, i * PLAYERS_PER_LOBBY, PLAYERS_PER_LOBBY);
+        }
+
+        SplittableRandom random = new SplittableRandom(42);
+
+        for (int i = connections.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            StubWebSocket swap = connections[i];
+            connections[i] = connections[j];
+            connections[j] = swap;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        server.shutdown();
+        BenchmarkFixtures.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public Player getPlayerByConn() {
+        if (next == connections.length) next = 0;
+
+        return server.getPlayerByConn(connections[next++]);
+    }
+}
@@ -0,0 +1,165 @@
+package websocket;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+// An always-open connection with no socket behind it. Everything sent to it is counted and dropped, so the
+// benchmarks measure the server's work rather than the network
+public class StubWebSocket implements WebSocket {
+
+    private static final Draft DRAFT = new Draft_6455();
+
+    private final InetSocketAddress address;
+
+    private final IProtocol protocol;
+
+    private long framesSent;
+
+    private Object attachment;
+
+    public StubWebSocket(int id, boolean binary) {
+        this.address = InetSocketAddress.createUnresolved("stub", id);
+        this.protocol = new Protocol(binary ? BinaryProtocol.SUBPROTOCOL : "");
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    @Override
+    public void close(int code, String message) {
+    }
+
+    @Override
+    public void close(int code) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void closeConnection(int code, String message) {
+    }
+
+    @Override
+    public void send(String text) {
+        framesSent++;
+    }
+
+    @Override
+    public void send(ByteBuffer bytes) {
+        framesSent++;
+    }
+
+    @Override
+    public void send(byte[] bytes) {
+        framesSent++;
+    }
+
+    @Override
+    public void sendFrame(Framedata framedata) {
+        framesSent++;
+    }
+
+    @Override
+    public void sendFrame(Collection<Framedata> frames) {
+        framesSent += frames.size();
+    }
+
+    @Override
+    public void sendPing() {
+    }
+
+    @Override
+    public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean fin) {
+        framesSent++;
+    }
+
+    @Override
+    public boolean hasBufferedData() {
+        return false;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteSocketAddress() {
+        return address;
+    }
+
+    @Override
+    public InetSocketAddress getLocalSocketAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosing() {
+        return false;
+    }
+
+    @Override
+    public boolean isFlushAndClose() {
+        return false;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public Draft getDraft() {
+        return DRAFT;
+    }
+
+    @Override
+    public ReadyState getReadyState() {
+        return ReadyState.OPEN;
+    }
+
+    @Override
+    public String getResourceDescriptor() {
+        return "/";
+    }
+
+    @Override
+    public <T> void setAttachment(T attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getAttachment() {
+        return (T) attachment;
+    }
+
+    @Override
+    public boolean hasSSLSupport() {
+        return false;
+    }
+
+    @Override
+    public SSLSession getSSLSession() {
+        throw new IllegalArgumentException("Stub connections have no SSL session");
+    }
+
+    @Override
+    public IProtocol getProtocol() {
+        return protocol;
+    }
+}
@@ -0,0 +1,202 @@
+package websocket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import websocket.LoadStats.Command;
+
+// One simulated player. The first client of each lobby is its host: it creates the lobby, starts games and
+// asks for pieces, the others join once it is in. Replies are matched to the oldest outstanding command of
+// the kind they answer:
+//   START, PIECE -> the START or PIECE broadcast (only the host sends these, so every one it gets is its own)
+//   SCORE, LIVES, SCORES -> the next SCORES snapshot, which is when the change becomes visible to the lobby
+//   MSG -> the broadcast carrying this client's marker
+//   HISCORE -> NEWSCORE, or the queue full ERROR
+public class LoadClient extends WebSocketClient {
+
+    private static final Logger logger = LogManager.getLogger(LoadClient.class);
+
+    private final int id;
+
+    private final String lobbyName;
+
+    private final boolean host;
+
+    // Completed once the host is in the lobby, the other members wait on their host's before joining
+    private final CompletableFuture<Void> hostJoined;
+
+    private final LoadStats stats;
+
+    private final String marker;
+
+    // Send times of commands still waiting for their reply, guarded by the map's monitor
+    private final Map<Command, ArrayDeque<Long>> pending = new EnumMap<>(Command.class);
+
+    private volatile boolean joined;
+
+    private long lastStart;
+
+    private int score;
+
+    private int lives = 3;
+
+    private int messages;
+
+    public LoadClient(URI uri, int id, String lobbyName, boolean host, CompletableFuture<Void> hostJoined, LoadStats stats) {
+        super(uri);
+
+        this.id = id;
+        this.lobbyName = lobbyName;
+        this.host = host;
+        this.hostJoined = hostJoined;
+        this.stats = stats;
+        this.marker = " m" + id + "#";
+
+        for (Command command : Command.values()) {
+            pending.put(command, new ArrayDeque<>());
+        }
+    }
+
+    @Override
+    public void onOpen(ServerHandshake handshake) {
+        if (host) {
+            send("CREATE " + lobbyName);
+            send("JOIN " + lobbyName);
+        } else {
+            hostJoined.thenRun(() -> {
+                if (isOpen()) send("JOIN " + lobbyName);
+            });
+        }
+    }
+
+    @Override
+    public void onMessage(String message) {
+        stats.received();
+
+        if (message.equals("JOIN")) {
+            joined = true;
+
+            if (host) hostJoined.complete(null);
+        } else if (message.equals("START")) {
+            reply(Command.START);
+        } else if (message.startsWith("PIECE ")) {
+            reply(Command.PIECE);
+        } else if (message.startsWith("SCORES")) {
+            replyAll(Command.SCORE);
+            replyAll(Command.LIVES);
+            replyAll(Command.SCORES);
+        } else if (message.startsWith("MSG ") && message.contains(marker)) {
+            reply(Command.MSG);
+        } else if (message.equals("NEWSCORE")) {
+            reply(Command.HISCORE);
+        } else if (message.startsWith("ERROR Score queue full")) {
+            if (poll(Command.HISCORE) != null) stats.error(Command.HISCORE);
+        }
+    }
+
+    @Override
+    public void onClose(int code, String reason, boolean remote) {
+        if (remote) logger.warn("Client {} disconnected by the server ({} {})", id, code, reason);
+    }
+
+    @Override
+    public void onError(Exception e) {
+        logger.warn("Client {} error, {}", id, e.getMessage());
+    }
+
+    // One tick of traffic, tickMillis after the last. Each command is sent on average rate times a second
+    public void tick(LoadConfig config) {
+        if (!joined || !isOpen()) return;
+
+        long now = System.nanoTime();
+        double tickSeconds = config.getTickMillis() / 1000.0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (host) {
+            long startEvery = config.getStartEverySeconds() * 1_000_000_000L;
+
+            if (lastStart == 0 || (startEvery > 0 && now - lastStart >= startEvery)) {
+                lastStart = now;
+                score = 0;
+                lives = 3;
+                request(Command.START, "START");
+            }
+
+            for (int i = draws(random, config.getPieceRate() * tickSeconds); i > 0; i--) {
+                request(Command.PIECE, "PIECE");
+            }
+        }
+
+        for (int i = draws(random, config.getScoreRate() * tickSeconds); i > 0; i--) {
+            score += random.nextInt(10, 500);
+            request(Command.SCORE, "SCORE " + score);
+        }
+
+        for (int i = draws(random, config.getLivesRate() * tickSeconds); i > 0; i--) {
+            lives = lives > 0 ? lives - 1 : 3;
+            request(Command.LIVES, "LIVES " + lives);
+        }
+
+        for (int i = draws(random, config.getScoresRate() * tickSeconds); i > 0; i--) {
+            request(Command.SCORES, "SCORES");
+        }
+
+        for (int i = draws(random, config.getMsgRate() * tickSeconds); i > 0; i--) {
+            request(Command.MSG, "MSG load" + marker + messages++);
+        }
+
+        for (int i = draws(random, config.getHiscoreRate() * tickSeconds); i > 0; i--) {
+            request(Command.HISCORE, "HISCORE load" + id + ":" + score);
+        }
+    }
+
+    // How many to send this tick for an expected count, the fraction becomes a chance of one more
+    private static int draws(ThreadLocalRandom random, double expected) {
+        int whole = (int) expected;
+
+        return whole + (random.nextDouble() < expected - whole ? 1 : 0);
+    }
+
+    private void request(Command command, String frame) {
+        synchronized (pending) {
+            pending.get(command).add(System.nanoTime());
+        }
+
+        stats.sent(command);
+        send(frame);
+    }
+
+    private void reply(Command command) {
+        Long sentAt = poll(command);
+
+        if (sentAt != null) stats.replied(command, System.nanoTime() - sentAt);
+    }
+
+    // A snapshot answers everything of that kind sent before it
+    private void replyAll(Command command) {
+        long now = System.nanoTime();
+
+        synchronized (pending) {
+            Long sentAt;
+
+            while ((sentAt = pending.get(command).poll()) != null) {
+                stats.replied(command, now - sentAt);
+            }
+        }
+    }
+
+    private Long poll(Command command) {
+        synchronized (pending) {
+            return pending.get(command).poll();
+        }
+    }
+}
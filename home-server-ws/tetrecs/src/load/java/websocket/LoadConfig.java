@@ -0,0 +1,166 @@
+package websocket;
+
+// Settings for LoadGenerator, read from -Dtetrecs.load.* system properties. Rates are per second, per client
+// for player traffic and per lobby for the host's START and PIECE
+public class LoadConfig {
+    private String url = "ws://127.0.0.1:8887";
+
+    private int clients = 200;
+
+    private int lobbySize = 4;
+
+    // Clients connect spread evenly over this window instead of all at once
+    private long rampMillis = 5000;
+
+    private long durationSeconds = 30;
+
+    // How often each client decides what to send, rates are spread over these ticks
+    private long tickMillis = 50;
+
+    private double scoreRate = 4;
+
+    private double livesRate = 0.2;
+
+    private double scoresRate = 0.5;
+
+    private double msgRate = 0.2;
+
+    // Off by default, every HISCORE is a permanent load<N> row in the server's score database. Only turn it on
+    // against a server started with a throwaway tetrecs.db.url
+    private double hiscoreRate = 0;
+
+    private double pieceRate = 1;
+
+    // Seconds between the host restarting its lobby's game with START, 0 for only the first one
+    private long startEverySeconds = 60;
+
+    public static LoadConfig fromSystemProperties() {
+        LoadConfig config = new LoadConfig();
+
+        config.setUrl(System.getProperty("tetrecs.load.url", config.getUrl()));
+        config.setClients(Integer.getInteger("tetrecs.load.clients", config.getClients()));
+        config.setLobbySize(Integer.getInteger("tetrecs.load.lobbySize", config.getLobbySize()));
+        config.setRampMillis(Long.getLong("tetrecs.load.rampMillis", config.getRampMillis()));
+        config.setDurationSeconds(Long.getLong("tetrecs.load.durationSeconds", config.getDurationSeconds()));
+        config.setTickMillis(Long.getLong("tetrecs.load.tickMillis", config.getTickMillis()));
+        config.setScoreRate(getDouble("tetrecs.load.scoreRate", config.getScoreRate()));
+        config.setLivesRate(getDouble("tetrecs.load.livesRate", config.getLivesRate()));
+        config.setScoresRate(getDouble("tetrecs.load.scoresRate", config.getScoresRate()));
+        config.setMsgRate(getDouble("tetrecs.load.msgRate", config.getMsgRate()));
+        config.setHiscoreRate(getDouble("tetrecs.load.hiscoreRate", config.getHiscoreRate()));
+        config.setPieceRate(getDouble("tetrecs.load.pieceRate", config.getPieceRate()));
+        config.setStartEverySeconds(Long.getLong("tetrecs.load.startEverySeconds", config.getStartEverySeconds()));
+
+        return config;
+    }
+
+    private static double getDouble(String property, double defaultValue) {
+        String value = System.getProperty(property);
+
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public int getLobbySize() {
+        return lobbySize;
+    }
+
+    public long getRampMillis() {
+        return rampMillis;
+    }
+
+    public long getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public double getScoreRate() {
+        return scoreRate;
+    }
+
+    public double getLivesRate() {
+        return livesRate;
+    }
+
+    public double getScoresRate() {
+        return scoresRate;
+    }
+
+    public double getMsgRate() {
+        return msgRate;
+    }
+
+    public double getHiscoreRate() {
+        return hiscoreRate;
+    }
+
+    public double getPieceRate() {
+        return pieceRate;
+    }
+
+    public long getStartEverySeconds() {
+        return startEverySeconds;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public void setClients(int clients) {
+        this.clients = clients;
+    }
+
+    public void setLobbySize(int lobbySize) {
+        this.lobbySize = lobbySize;
+    }
+
+    public void setRampMillis(long rampMillis) {
+        this.rampMillis = rampMillis;
+    }
+
+    public void setDurationSeconds(long durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public void setTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    public void setScoreRate(double scoreRate) {
+        this.scoreRate = scoreRate;
+    }
+
+    public void setLivesRate(double livesRate) {
+        this.livesRate = livesRate;
+    }
+
+    public void setScoresRate(double scoresRate) {
+        this.scoresRate = scoresRate;
+    }
+
+    public void setMsgRate(double msgRate) {
+        this.msgRate = msgRate;
+    }
+
+    public void setHiscoreRate(double hiscoreRate) {
+        this.hiscoreRate = hiscoreRate;
+    }
+
+    public void setPieceRate(double pieceRate) {
+        this.pieceRate = pieceRate;
+    }
+
+    public void setStartEverySeconds(long startEverySeconds) {
+        this.startEverySeconds = startEverySeconds;
+    }
+}
@@ -0,0 +1,123 @@
+package websocket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Headless load test for a local LocalWebSocketServer. Opens tetrecs.load.clients connections in lobbies of
+// tetrecs.load.lobbySize, replays game traffic at the configured rates for tetrecs.load.durationSeconds after
+// the ramp-up, then prints throughput and latency percentiles per command. Run with
+//   mvn -Pload verify -Dtetrecs.load.clients=1000
+// Only loopback servers are accepted, this is for capacity planning on one machine, not for load testing
+// someone else's. Every client is a Java-WebSocket client with its own read and write thread, so N clients
+// cost 2N platform threads here and a few thousand is the practical ceiling
+public class LoadGenerator {
+
+    private static final Logger logger = LogManager.getLogger(LoadGenerator.class);
+
+    public static void main(String[] args) throws Exception {
+        try {
+            run();
+        } finally {
+            // log4j2.xml disables log4j's own shutdown hook, so flush the async loggers before exiting
+            LogManager.shutdown();
+        }
+    }
+
+    private static void run() throws Exception {
+        LoadConfig config = LoadConfig.fromSystemProperties();
+        URI uri = URI.create(config.getUrl());
+
+        if (!isLoopback(uri.getHost())) {
+            logger.error("Refusing to generate load against {}, only loopback addresses are allowed", uri);
+            return;
+        }
+
+        if (config.getHiscoreRate() > 0) {
+            logger.warn("Sending HISCORE, {} will keep a load<N> score for every client in its database", uri);
+        }
+
+        LoadStats stats = new LoadStats();
+        List<LoadClient> clients = new ArrayList<>(config.getClients());
+        CompletableFuture<Void> hostJoined = null;
+
+        for (int i = 0; i < config.getClients(); i++) {
+            boolean host = i % config.getLobbySize() == 0;
+
+            if (host) hostJoined = new CompletableFuture<>();
+
+            clients.add(new LoadClient(uri, i, "load" + (i / config.getLobbySize()), host, hostJoined, stats));
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                    Thread thread = new Thread(runnable, "load-traffic");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        logger.info("Connecting {} clients to {} over {}ms", config.getClients(), uri, config.getRampMillis());
+
+        // Each client connects at its point in the ramp and starts its ticks at a random phase after that
+        for (int i = 0; i < clients.size(); i++) {
+            LoadClient client = clients.get(i);
+            long connectAt = config.getRampMillis() * i / clients.size();
+            long firstTick = connectAt + config.getTickMillis() + ThreadLocalRandom.current().nextLong(config.getTickMillis());
+
+            scheduler.schedule(client::connect, connectAt, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(() -> client.tick(config), firstTick, config.getTickMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        Thread.sleep(config.getRampMillis());
+
+        // Give stragglers up to ten seconds to finish their handshakes before measuring
+        long connected = 0;
+
+        for (int wait = 0; wait < 100 && connected < clients.size(); wait++) {
+            Thread.sleep(100);
+            connected = clients.stream().filter(LoadClient::isOpen).count();
+        }
+
+        logger.info("{} of {} clients connected, measuring for {}s", connected, config.getClients(),
+                config.getDurationSeconds());
+
+        stats.reset();
+        long started = System.nanoTime();
+
+        Thread.sleep(config.getDurationSeconds() * 1000);
+
+        long elapsed = System.nanoTime() - started;
+
+        scheduler.shutdownNow();
+
+        // Leave a moment for replies still in flight before reporting
+        Thread.sleep(Math.max(1000, 2 * config.getTickMillis()));
+
+        System.out.println();
+        System.out.println(connected + " clients, " + (config.getClients() + config.getLobbySize() - 1) / config.getLobbySize()
+                + " lobbies, " + config.getDurationSeconds() + "s against " + uri);
+        System.out.print(stats.report(elapsed));
+
+        for (LoadClient client : clients) {
+            client.closeBlocking();
+        }
+    }
+
+    private static boolean isLoopback(String host) {
+        try {
+            return host != null && InetAddress.getByName(host).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+}
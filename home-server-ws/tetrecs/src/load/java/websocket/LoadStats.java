@@ -0,0 +1,80 @@
+package websocket;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms per command, shared by every LoadClient. Latency is from sending a command
+// to the frame that answers it reaching the same client, see LoadClient for how replies are matched
+public class LoadStats {
+
+    public enum Command { START, PIECE, SCORE, LIVES, SCORES, MSG, HISCORE }
+
+    private final Map<Command, LongAdder> sent = new EnumMap<>(Command.class);
+
+    private final Map<Command, LongAdder> errors = new EnumMap<>(Command.class);
+
+    private final Map<Command, LatencyHistogram> latencies = new EnumMap<>(Command.class);
+
+    private final LongAdder framesReceived = new LongAdder();
+
+    public LoadStats() {
+        for (Command command : Command.values()) {
+            sent.put(command, new LongAdder());
+            errors.put(command, new LongAdder());
+            latencies.put(command, new LatencyHistogram());
+        }
+    }
+
+    public void sent(Command command) {
+        sent.get(command).increment();
+    }
+
+    public void replied(Command command, long nanos) {
+        latencies.get(command).record(nanos);
+    }
+
+    public void error(Command command) {
+        errors.get(command).increment();
+    }
+
+    public void received() {
+        framesReceived.increment();
+    }
+
+    // Drops everything recorded so far, so the ramp-up is left out of the report
+    public void reset() {
+        for (Command command : Command.values()) {
+            sent.get(command).reset();
+            errors.get(command).reset();
+            latencies.get(command).reset();
+        }
+
+        framesReceived.reset();
+    }
+
+    public String report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder report = new StringBuilder(String.format("%-8s %10s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+                "Command", "Sent", "Replies", "Errors", "Sent/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        for (Command command : Command.values()) {
+            LatencyHistogram latency = latencies.get(command);
+
+            report.append(String.format("%-8s %10d %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    command, sent.get(command).sum(), latency.getCount(), errors.get(command).sum(),
+                    sent.get(command).sum() / seconds,
+                    millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(90)),
+                    millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)),
+                    millis(latency.getMax())));
+        }
+
+        report.append(String.format("Frames received: %d (%.1f/s)%n", framesReceived.sum(), framesReceived.sum() / seconds));
+
+        return report.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
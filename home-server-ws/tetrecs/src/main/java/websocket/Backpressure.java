@@ -0,0 +1,70 @@
+package websocket;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+
+import java.nio.ByteBuffer;
+
+// How far behind a connection is, read off the frames Java-WebSocket has queued for it but not yet written to
+// the socket. A connection past degradeFrames is congested: frames that a later one supersedes (score
+// snapshots) are held back for it. Past maxFrames or maxBytes it is overflowing and gets disconnected, so one
+// player on a poor link cannot pile up unbounded frames in the heap
+public class Backpressure {
+
+    public enum State { OK, CONGESTED, OVERFLOWING }
+
+    private final int degradeFrames;
+
+    private final int maxFrames;
+
+    private final long maxBytes;
+
+    public Backpressure(ServerConfig config) {
+        this.degradeFrames = config.getBackpressureDegradeFrames();
+        this.maxFrames = Math.max(config.getBackpressureMaxFrames(), degradeFrames);
+        this.maxBytes = config.getBackpressureMaxBytes();
+    }
+
+    // Counting frames is a single read. Bytes are added up whenever anything is queued, since a few large frames
+    // (a whole LOBBIES directory, a long HISCORES page) can pass maxBytes well before the frame limits. Below
+    // maxFrames the sum covers at most maxFrames buffers and stops as soon as it passes maxBytes, and most
+    // connections have nothing queued at all
+    public State check(WebSocket conn) {
+        int frames = queuedFrames(conn);
+
+        if (frames == 0) return State.OK;
+        if (frames > maxFrames || exceedsBytes(conn)) return State.OVERFLOWING;
+
+        return frames <= degradeFrames ? State.OK : State.CONGESTED;
+    }
+
+    private boolean exceedsBytes(WebSocket conn) {
+        if (!(conn instanceof WebSocketImpl impl)) return false;
+
+        long bytes = 0;
+
+        for (ByteBuffer buffer : impl.outQueue) {
+            bytes += buffer.remaining();
+
+            if (bytes > maxBytes) return true;
+        }
+
+        return false;
+    }
+
+    public static int queuedFrames(WebSocket conn) {
+        return conn instanceof WebSocketImpl impl ? impl.outQueue.size() : 0;
+    }
+
+    public static long queuedBytes(WebSocket conn) {
+        if (!(conn instanceof WebSocketImpl impl)) return 0;
+
+        long bytes = 0;
+
+        for (ByteBuffer buffer : impl.outQueue) {
+            bytes += buffer.remaining();
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,126 @@
+package websocket;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.protocols.IProtocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+// Compact binary framing for the high-frequency commands, used by clients that ask for the "tetrecs.bin"
+// subprotocol in their handshake. Every frame is one opcode byte followed by fixed fields, integers are
+// zigzag varints. Everything else (JOIN, MSG, USERS, ...) stays text on both kinds of connection.
+//
+// Client to server:  SCORE score | LIVES lives | PIECE | PIECES from | SCORES
+// Server to client:  PIECE piece | PIECES from count piece... (one byte each) | SCORES count (name score lives)...
+//                    where name is a varint byte length followed by UTF-8
+public final class BinaryProtocol {
+
+    public static final String SUBPROTOCOL = "tetrecs.bin";
+
+    public static final byte SCORE = 0x01;
+
+    public static final byte LIVES = 0x02;
+
+    public static final byte PIECE = 0x03;
+
+    public static final byte PIECES = 0x04;
+
+    public static final byte SCORES = 0x05;
+
+    public static final byte PIECE_UPDATE = (byte) 0x81;
+
+    public static final byte PIECES_UPDATE = (byte) 0x82;
+
+    public static final byte SCORES_UPDATE = (byte) 0x83;
+
+    private BinaryProtocol() {
+    }
+
+    public static boolean isNegotiated(WebSocket conn) {
+        IProtocol protocol = conn.getProtocol();
+
+        return protocol != null && SUBPROTOCOL.equals(protocol.getProvidedProtocol());
+    }
+
+    public static ByteBuffer encodePiece(int piece) {
+        ByteBuffer buffer = ByteBuffer.allocate(6);
+        buffer.put(PIECE_UPDATE);
+        writeVarint(buffer, piece);
+
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodePieces(PieceSequence pieces, int from, int count) {
+        pieces.checkRange(from, count);
+
+        ByteBuffer buffer = ByteBuffer.allocate(11 + count);
+        buffer.put(PIECES_UPDATE);
+        writeVarint(buffer, from);
+        writeVarint(buffer, count);
+
+        for (int i = from; i < from + count; i++) {
+            buffer.put((byte) pieces.get(i));
+        }
+
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeScores(Collection<Player> players) {
+        byte[][] names = new byte[players.size()][];
+        int size = 6;
+        int i = 0;
+
+        for (Player player : players) {
+            names[i] = player.getUsername().getBytes(StandardCharsets.UTF_8);
+            size += 5 + names[i].length + 10;
+            i++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(SCORES_UPDATE);
+        writeVarint(buffer, players.size());
+
+        i = 0;
+
+        for (Player player : players) {
+            writeVarint(buffer, names[i].length);
+            buffer.put(names[i++]);
+            writeVarint(buffer, player.getScore());
+            writeVarint(buffer, player.getLives());
+        }
+
+        return buffer.flip();
+    }
+
+    // Signed values are zigzag encoded so small negatives stay short too
+    public static void writeVarint(ByteBuffer buffer, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+
+        while ((zigzag & ~0x7F) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+
+        buffer.put((byte) zigzag);
+    }
+
+    // Throws IllegalArgumentException on a truncated or over-long varint
+    public static int readVarint(ByteBuffer buffer) {
+        int zigzag = 0;
+
+        try {
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                zigzag |= (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated varint");
+        }
+
+        throw new IllegalArgumentException("Varint longer than 5 bytes");
+    }
+}
@@ -0,0 +1,170 @@
+package websocket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+// Mirrors one peer node's lobbies into this node's cluster-wide LobbyDirectory. It subscribes to the peer's own
+// lobbies with LISTSUB LOCAL and applies the snapshot and the deltas that follow. While the link is down the
+// peer's lobbies are withdrawn, and the next snapshot after reconnecting replaces whatever was there.
+//
+// Callbacks from a link that has since been replaced are ignored, so a late close cannot withdraw lobbies the
+// new link already reported
+public class ClusterPeer {
+
+    private static final Logger logger = LogManager.getLogger(ClusterPeer.class);
+
+    private final URI uri;
+
+    private final LobbyDirectory directory;
+
+    private final int connectTimeoutMillis;
+
+    // Names this peer has put in the directory, guarded by this
+    private final Set<String> lobbies = new HashSet<>();
+
+    private volatile Link link;
+
+    public ClusterPeer(String uri, LobbyDirectory directory, int connectTimeoutMillis) {
+        this.uri = URI.create(uri);
+        this.directory = directory;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public String getUri() {
+        return uri.toString();
+    }
+
+    public boolean isConnected() {
+        Link current = link;
+
+        return current != null && current.isOpen();
+    }
+
+    // Start a new link if there is none or the last one closed. Called periodically, returns straight away
+    public void connect() {
+        Link current = link;
+
+        if (current != null && !current.isClosed()) return;
+
+        link = new Link(uri, connectTimeoutMillis);
+        link.connect();
+    }
+
+    public void close() {
+        Link current = link;
+
+        if (current != null) current.close();
+    }
+
+    private synchronized void applySnapshot(Link from, String message) {
+        if (link != from) return;
+
+        Set<String> stale = new HashSet<>(lobbies);
+        String[] lines = message.split("\n");
+
+        // The first line is the LOBBIES header
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split(" ");
+
+            if (fields.length < 3) continue;
+
+            // Still listed, so a malformed line keeps the entry it had rather than withdrawing it
+            stale.remove(fields[0]);
+
+            try {
+                put(fields[0], fields[1], fields[2]);
+            } catch (NumberFormatException e) {
+                logger.warn("Malformed lobby in snapshot from cluster peer {} -> {}", uri, lines[i]);
+            }
+        }
+
+        for (String name : stale) {
+            lobbies.remove(name);
+            directory.remove(name);
+        }
+
+        logger.info("Cluster peer {} lists {} lobbies", uri, lobbies.size());
+    }
+
+    // LOBBY <version> ADD|UPDATE <name> <players> <state> or LOBBY <version> REMOVE <name>
+    private synchronized void applyDelta(Link from, String message) {
+        if (link != from) return;
+
+        String[] fields = message.split(" ");
+
+        if (fields.length >= 4 && fields[2].equals("REMOVE")) {
+            lobbies.remove(fields[3]);
+            directory.remove(fields[3]);
+        } else if (fields.length >= 6) {
+            try {
+                put(fields[3], fields[4], fields[5]);
+            } catch (NumberFormatException e) {
+                logger.warn("Malformed lobby delta from cluster peer {} -> {}", uri, message);
+            }
+        } else {
+            logger.warn("Malformed lobby delta from cluster peer {} -> {}", uri, message);
+        }
+    }
+
+    // Throws NumberFormatException if the player count is not a number, leaving the directory untouched
+    private void put(String name, String players, String state) {
+        int count = Integer.parseInt(players);
+
+        directory.update(name, count, state.equals("STARTED"));
+        lobbies.add(name);
+    }
+
+    private synchronized void withdraw(Link from) {
+        if (link != from || lobbies.isEmpty()) return;
+
+        for (String name : lobbies) {
+            directory.remove(name);
+        }
+
+        lobbies.clear();
+    }
+
+    private class Link extends WebSocketClient {
+
+        private Link(URI uri, int connectTimeoutMillis) {
+            super(uri, new Draft_6455(), Collections.emptyMap(), connectTimeoutMillis);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            logger.info("Connected to cluster peer {}", uri);
+
+            send("LISTSUB LOCAL");
+        }
+
+        @Override
+        public void onMessage(String message) {
+            if (message.startsWith("LOBBIES ")) {
+                applySnapshot(this, message);
+            } else if (message.startsWith("LOBBY ")) {
+                applyDelta(this, message);
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            if (code != CloseFrame.NEVER_CONNECTED) logger.warn("Lost cluster peer {}, {} {}", uri, code, reason);
+
+            withdraw(this);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            logger.debug("Cluster peer {} error, {}", uri, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package websocket;
+
+// Allocation-free helpers for reading command arguments in place, replacing String.split/replace which
+// compile a regex and copy the message on every frame
+public final class CommandArgs {
+
+    private CommandArgs() {
+    }
+
+    public static int skipSpaces(String message, int from) {
+        while (from < message.length() && message.charAt(from) == ' ') from++;
+
+        return from;
+    }
+
+    // Index of the first space at or after from, or message.length() if there is none
+    public static int tokenEnd(String message, int from) {
+        int space = message.indexOf(' ', from);
+
+        return space < 0 ? message.length() : space;
+    }
+
+    // Next space-delimited token starting at from, or an empty string if there is none
+    public static String token(String message, int from) {
+        int start = skipSpaces(message, from);
+
+        return message.substring(start, tokenEnd(message, start));
+    }
+
+    // Everything from the offset to the end of the message, trimmed
+    public static String rest(String message, int from) {
+        return from >= message.length() ? "" : message.substring(from).trim();
+    }
+
+    // Parses a signed decimal integer starting at from (leading spaces skipped), stopping at the first
+    // non-digit. Throws NumberFormatException if there are no digits
+    public static int parseInt(String message, int from) {
+        int i = skipSpaces(message, from);
+        boolean negative = false;
+
+        if (i < message.length() && (message.charAt(i) == '-' || message.charAt(i) == '+')) {
+            negative = message.charAt(i) == '-';
+            i++;
+        }
+
+        int start = i;
+        long value = 0;
+
+        while (i < message.length()) {
+            int digit = message.charAt(i) - '0';
+
+            if (digit < 0 || digit > 9) break;
+
+            value = value * 10 + digit;
+
+            if (value > (long) Integer.MAX_VALUE + 1) throw new NumberFormatException("Integer overflow in: " + message);
+            i++;
+        }
+
+        if (i == start) throw new NumberFormatException("No integer at offset " + from + " in: " + message);
+
+        value = negative ? -value : value;
+
+        if (value > Integer.MAX_VALUE) throw new NumberFormatException("Integer overflow in: " + message);
+
+        return (int) value;
+    }
+}
@@ -0,0 +1,170 @@
+package websocket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.WebSocket;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Routes a text frame to the handler registered for its command token (everything before the first space).
+// The token is hashed and compared straight out of the message in a small open-addressed table, so
+// dispatch is one scan of the token and no copy of it is ever made.
+//
+// Commands registered as blocking run on the ConnectionExecutor when one is set, everything else runs inline
+// on the calling worker thread unless that connection still has offloaded work outstanding. Every handler
+// call is timed into its command's metrics.
+//
+// Received frames are logged at debug. Commands marked with sampleLogging only log one frame in every so many at
+// debug and the rest at trace, so debug logging stays usable while games are sending SCORE many times a second
+public class CommandDispatcher {
+    private static final Logger logger = LogManager.getLogger(CommandDispatcher.class);
+
+    private final ServerMetrics metrics;
+
+    private Route[] routes = new Route[32];
+
+    private int count;
+
+    private ConnectionExecutor executor;
+
+    public CommandDispatcher(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void register(String command, CommandHandler handler) {
+        register(command, handler, false);
+    }
+
+    public void register(String command, CommandHandler handler, boolean blocking) {
+        if ((count + 1) * 2 > routes.length) resize();
+
+        if (insert(routes, new Route(command, handler, blocking, metrics.command(command)))) count++;
+    }
+
+    // Call after the commands are registered and before the server starts
+    public void sampleLogging(int every, String... commands) {
+        for (String command : commands) {
+            for (Route route : routes) {
+                if (route != null && route.command.equals(command)) route.sampleEvery = Math.max(1, every);
+            }
+        }
+    }
+
+    public void setExecutor(ConnectionExecutor executor) {
+        this.executor = executor;
+    }
+
+    // Run a task for the connection inline, or behind its outstanding offloaded work to keep its order
+    public void execute(WebSocket conn, Runnable task) {
+        if (executor != null && executor.hasPending(conn)) {
+            executor.execute(conn, task);
+        } else {
+            task.run();
+        }
+    }
+
+    // Returns false if the message does not start with a registered command
+    public boolean dispatch(WebSocket conn, String message) {
+        int end = 0;
+        int hash = 0;
+        int length = message.length();
+
+        while (end < length) {
+            char c = message.charAt(end);
+
+            if (c == ' ') break;
+
+            hash = 31 * hash + c;
+            end++;
+        }
+
+        int mask = routes.length - 1;
+
+        for (int i = spread(hash) & mask; routes[i] != null; i = (i + 1) & mask) {
+            Route route = routes[i];
+
+            if (route.command.length() == end && message.startsWith(route.command)) {
+                int argsOffset = end < length ? end + 1 : length;
+
+                if (executor != null && (route.blocking || executor.hasPending(conn))) {
+                    executor.execute(conn, () -> route.handle(conn, message, argsOffset));
+                } else {
+                    route.handle(conn, message, argsOffset);
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void resize() {
+        Route[] newRoutes = new Route[routes.length * 2];
+
+        for (Route route : routes) {
+            if (route != null) insert(newRoutes, route);
+        }
+
+        routes = newRoutes;
+    }
+
+    // Returns true if the command was new, false if it replaced an existing handler
+    private static boolean insert(Route[] routes, Route route) {
+        int mask = routes.length - 1;
+        int i = spread(route.command.hashCode()) & mask;
+
+        while (routes[i] != null && !routes[i].command.equals(route.command)) {
+            i = (i + 1) & mask;
+        }
+
+        boolean added = routes[i] == null;
+
+        routes[i] = route;
+
+        return added;
+    }
+
+    // String hash codes of short upper-case tokens differ mostly in the low bits, fold the high ones in too
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Route {
+        private final String command;
+
+        private final CommandHandler handler;
+
+        private final boolean blocking;
+
+        private final ServerMetrics.CommandMetrics metrics;
+
+        private int sampleEvery = 1;
+
+        private Route(String command, CommandHandler handler, boolean blocking, ServerMetrics.CommandMetrics metrics) {
+            this.command = command;
+            this.handler = handler;
+            this.blocking = blocking;
+            this.metrics = metrics;
+        }
+
+        private void handle(WebSocket conn, String message, int argsOffset) {
+            if (logger.isDebugEnabled()) log(conn, message);
+
+            long start = System.nanoTime();
+
+            try {
+                handler.handle(conn, message, argsOffset);
+            } finally {
+                metrics.record(System.nanoTime() - start);
+            }
+        }
+
+        private void log(WebSocket conn, String message) {
+            if (sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0) {
+                logger.debug("Message received from {} -> {}", conn.getRemoteSocketAddress(), message);
+            } else {
+                logger.trace("Message received from {} -> {}", conn.getRemoteSocketAddress(), message);
+            }
+        }
+    }
+}
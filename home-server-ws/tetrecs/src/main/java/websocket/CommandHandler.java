@@ -0,0 +1,10 @@
+package websocket;
+
+import org.java_websocket.WebSocket;
+
+// Handles one text command. argsOffset is the index in message where the command's arguments start
+// (message.length() if it has none), so handlers can parse in place with CommandArgs instead of splitting
+@FunctionalInterface
+public interface CommandHandler {
+    void handle(WebSocket conn, String message, int argsOffset);
+}
@@ -0,0 +1,97 @@
+package websocket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.java_websocket.WebSocket;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs work for a connection off the WebSocket worker threads, on virtual threads, while keeping each
+// connection's tasks in the order they were submitted. A connection's tasks form a queue drained by at most one
+// virtual thread at a time, different connections run in parallel
+public class ConnectionExecutor implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(ConnectionExecutor.class);
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Map<WebSocket, TaskQueue> queues = new ConcurrentHashMap<>();
+
+    public void execute(WebSocket conn, Runnable task) {
+        TaskQueue queue = queues.computeIfAbsent(conn, TaskQueue::new);
+
+        queue.tasks.add(task);
+        schedule(queue);
+    }
+
+    // True while the connection has submitted work that has not finished. Anything the connection sends in the
+    // meantime has to queue behind it, even commands that would normally run inline
+    public boolean hasPending(WebSocket conn) {
+        TaskQueue queue = queues.get(conn);
+
+        return queue != null && (queue.running.get() || !queue.tasks.isEmpty());
+    }
+
+    // Forget a closed connection. If it still has work queued, that is left to finish and the queue removes
+    // itself once drained
+    public void remove(WebSocket conn) {
+        queues.computeIfPresent(conn, (key, queue) -> queue.running.get() || !queue.tasks.isEmpty() ? queue : null);
+    }
+
+    private void schedule(TaskQueue queue) {
+        if (queue.running.compareAndSet(false, true)) executor.execute(() -> drain(queue));
+    }
+
+    private void drain(TaskQueue queue) {
+        Runnable task;
+
+        while ((task = queue.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Connection task failed, ", e);
+            }
+        }
+
+        queue.running.set(false);
+
+        // A task may have been added after the last poll but before running was cleared
+        if (!queue.tasks.isEmpty()) {
+            schedule(queue);
+        } else if (!queue.conn.isOpen()) {
+            queues.remove(queue.conn, queue);
+        }
+    }
+
+    // Interrupted while waiting, the remaining tasks are cancelled and the interrupt is kept for the caller
+    @Override
+    public void close() {
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class TaskQueue {
+        private final WebSocket conn;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        private TaskQueue(WebSocket conn) {
+            this.conn = conn;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package websocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hashing of lobby names onto cluster nodes. Each node is placed on the ring at many points so
+// lobbies spread evenly, and adding or removing a node only moves the lobbies on its own arcs. Every node
+// builds the same ring from the same node list, so they all agree on owners without talking to each other
+public class HashRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(Collection<String> nodes, int pointsPerNode) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("A hash ring needs at least one node");
+
+        for (String node : nodes) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public String owner(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    // 64-bit FNV-1a, which on its own leaves similar names close together, finished with the splitmix64 mixer
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,112 @@
+package websocket;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies in nanoseconds, counted into log-linear buckets the way HdrHistogram does it: 64 sub-buckets per
+// power of two keeps every value to within about 1.5%, from 1 microsecond up to more than a day, in one fixed
+// array. Recording is lock-free and safe from any thread, percentiles are read from whatever has been
+// recorded so far
+public class LatencyHistogram {
+
+    // Values are counted in units of 1024ns, anything finer than a microsecond is noise at this level
+    private static final int UNIT_SHIFT = 10;
+
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int MAX_SHIFT = 30;
+
+    private static final long MAX_UNITS = ((2L * SUB_BUCKETS) << MAX_SHIFT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(2 * SUB_BUCKETS + MAX_SHIFT * SUB_BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+
+        counts.incrementAndGet(indexOf(Math.min(nanos >>> UNIT_SHIFT, MAX_UNITS)));
+        count.increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    // Sum of every recorded latency in nanoseconds
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long recorded = count.sum();
+
+        return recorded == 0 ? 0 : (double) total.sum() / recorded;
+    }
+
+    // The latency that percentile per cent of recordings were at or below, in nanoseconds. Reported as the top
+    // of its bucket, so it errs high rather than low
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[counts.length()];
+        long recorded = 0;
+
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            recorded += snapshot[i];
+        }
+
+        if (recorded == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+
+            if (seen >= target) return Math.min(highestUnitsAt(i) << UNIT_SHIFT, getMax());
+        }
+
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+
+    // Values below 2 * SUB_BUCKETS get a bucket each, above that each power of two is split into SUB_BUCKETS
+    private static int indexOf(long units) {
+        if (units < 2 * SUB_BUCKETS) return (int) units;
+
+        int shift = 63 - Long.numberOfLeadingZeros(units) - SUB_BUCKET_BITS;
+
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((units >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestUnitsAt(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,104 @@
+package websocket;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+// The top N scores, kept sorted in memory so HISCORES never touches the database. Scores only ever go up,
+// so a player outside the top N can only get in through their own new best, which is offered here as it
+// is committed. The serialized HISCORES body is cached and only rebuilt when the top N actually changes
+public class Leaderboard {
+
+    private final int capacity;
+
+    private final TreeSet<Entry> entries = new TreeSet<>();
+
+    private final Map<String, Entry> byName = new HashMap<>();
+
+    private volatile String payload = "";
+
+    public Leaderboard(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // name:score lines, best first
+    public String getPayload() {
+        return payload;
+    }
+
+    // Record a player's new best score, returns true if the top N changed
+    public synchronized boolean offer(String name, int score) {
+        if (!place(name, score)) return false;
+
+        payload = serialize();
+
+        return true;
+    }
+
+    // Replace the contents in one go, used when loading from the database
+    public synchronized void load(Map<String, Integer> scores) {
+        entries.clear();
+        byName.clear();
+
+        scores.forEach(this::place);
+
+        payload = serialize();
+    }
+
+    private boolean place(String name, int score) {
+        Entry current = byName.get(name);
+
+        if (current != null) {
+            if (score <= current.score) return false;
+
+            entries.remove(current);
+        } else if (entries.size() >= capacity) {
+            Entry last = entries.last();
+
+            if (new Entry(name, score).compareTo(last) >= 0) return false;
+
+            entries.remove(last);
+            byName.remove(last.name);
+        }
+
+        Entry entry = new Entry(name, score);
+
+        entries.add(entry);
+        byName.put(name, entry);
+
+        return true;
+    }
+
+    private String serialize() {
+        StringBuilder scores = new StringBuilder(entries.size() * 16);
+
+        for (Entry entry : entries) {
+            scores.append(entry.name).append(":").append(entry.score).append("\n");
+        }
+
+        return scores.toString();
+    }
+
+    // Highest score first, ties broken by name so every entry has a distinct position
+    private static class Entry implements Comparable<Entry> {
+        private final String name;
+
+        private final int score;
+
+        private Entry(String name, int score) {
+            this.name = name;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int byScore = Integer.compare(other.score, score);
+
+            return byScore != 0 ? byScore : name.compareTo(other.name);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package websocket;
+
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A single lobby and its players. Membership and host state are guarded by the lobby's own monitor, so
+// callbacks for different lobbies never contend with each other. Compound operations (change membership
+// then broadcast the roster) should hold synchronized (lobby) for their whole duration.
+//
+// A lobby is closed when the server reclaims it. Anyone holding a reference checks isClosed() under the lock
+// before adding to it, since a closed lobby is no longer in the server's map
+public class Lobby {
+    private final String name;
+
+    private final long createdAt = System.nanoTime();
+
+    // nanoTime of the last broadcast or score change, for reaping lobbies nobody is playing in
+    private volatile long lastActivity = createdAt;
+
+    private boolean closed;
+
+    private final Set<Player> players = new LinkedHashSet<>();
+
+    // Members' connections for broadcasting, all of them and split by protocol, rebuilt lazily after the
+    // membership changes
+    private List<WebSocket> connections;
+
+    private List<WebSocket> textConnections;
+
+    private List<WebSocket> binaryConnections;
+
+    // Set when a member's score or lives change, cleared when the next scores snapshot goes out
+    private final AtomicBoolean scoresDirty = new AtomicBoolean();
+
+    // Bumped on every roster change, so clients can tell which events are newer than their snapshot
+    private long rosterVersion;
+
+    // Pieces for the current game, replaced on every START
+    private PieceSequence pieces;
+
+    // Set by the first START, the lobby browser lists the lobby as no longer open
+    private boolean started;
+
+    // Numbers handed to joiners, never reused, so roster events always name exactly one member
+    private int joinCount;
+
+    public Lobby(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized void close() {
+        closed = true;
+    }
+
+    // Live view of the members, only iterate it while holding the lobby's lock
+    public synchronized Set<Player> getPlayers() {
+        return Collections.unmodifiableSet(players);
+    }
+
+    public synchronized int size() {
+        return players.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return players.isEmpty();
+    }
+
+    public synchronized List<WebSocket> getConnections() {
+        if (connections == null) indexConnections();
+
+        return connections;
+    }
+
+    // Members speaking the text protocol only
+    public synchronized List<WebSocket> getTextConnections() {
+        if (connections == null) indexConnections();
+
+        return textConnections;
+    }
+
+    // Members that negotiated BinaryProtocol
+    public synchronized List<WebSocket> getBinaryConnections() {
+        if (connections == null) indexConnections();
+
+        return binaryConnections;
+    }
+
+    private void indexConnections() {
+        List<WebSocket> all = new ArrayList<>(players.size());
+        List<WebSocket> text = new ArrayList<>(players.size());
+        List<WebSocket> binary = new ArrayList<>();
+
+        for (Player player : players) {
+            WebSocket conn = player.getConn();
+
+            // Detached players are waiting to be resumed, there is nothing to send them
+            if (conn == null) continue;
+
+            all.add(conn);
+            (BinaryProtocol.isNegotiated(conn) ? binary : text).add(conn);
+        }
+
+        connections = Collections.unmodifiableList(all);
+        textConnections = Collections.unmodifiableList(text);
+        binaryConnections = Collections.unmodifiableList(binary);
+    }
+
+    public synchronized void addPlayer(Player player) {
+        if (players.add(player)) connections = null;
+    }
+
+    public synchronized boolean contains(Player player) {
+        return players.contains(player);
+    }
+
+    public synchronized boolean hasPlayerNamed(String username) {
+        for (Player player : players) {
+            if (player.getUsername().equals(username)) return true;
+        }
+
+        return false;
+    }
+
+    // A default name for the next joiner, skipping any a member already took with NICK or kept through a restart
+    public synchronized String nextPlayerName() {
+        String username;
+
+        do {
+            username = "Player" + ++joinCount;
+        } while (hasPlayerNamed(username));
+
+        return username;
+    }
+
+    // Move a member to another connection, or detach it from any with null
+    public synchronized void rebind(Player player, WebSocket conn) {
+        player.setConn(conn);
+        connections = null;
+    }
+
+    public synchronized boolean removePlayer(Player player) {
+        if (!players.remove(player)) return false;
+
+        connections = null;
+
+        return true;
+    }
+
+    public synchronized long getRosterVersion() {
+        return rosterVersion;
+    }
+
+    public synchronized long nextRosterVersion() {
+        return ++rosterVersion;
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    // State saved in a snapshot, set before the lobby is shared
+    public synchronized void restore(boolean started, long rosterVersion, PieceSequence pieces) {
+        this.started = started;
+        this.rosterVersion = rosterVersion;
+        this.pieces = pieces;
+    }
+
+    public synchronized PieceSequence startPieces(long seed) {
+        started = true;
+        pieces = new PieceSequence(seed);
+
+        return pieces;
+    }
+
+    // The current game's pieces, or null if no game has asked for any
+    public synchronized PieceSequence getPiecesIfAny() {
+        return pieces;
+    }
+
+    // The current game's pieces, starting a sequence if a client asks for pieces before any START
+    public synchronized PieceSequence getPieces() {
+        if (pieces == null) pieces = new PieceSequence(ThreadLocalRandom.current().nextLong());
+
+        return pieces;
+    }
+
+    // Returns true only for the call that turned the flag on, so the lobby is queued for a snapshot once
+    public boolean markScoresDirty() {
+        return scoresDirty.compareAndSet(false, true);
+    }
+
+    public boolean clearScoresDirty() {
+        return scoresDirty.getAndSet(false);
+    }
+
+    // Hand the host role to the longest-standing connected member, or the longest-standing member if all of them
+    // are waiting to be resumed. Returns the new host or null if the lobby is empty
+    public synchronized Player promoteNewHost() {
+        if (players.isEmpty()) return null;
+
+        Player newHost = players.iterator().next();
+
+        for (Player player : players) {
+            if (player.getConn() != null) {
+                newHost = player;
+                break;
+            }
+        }
+
+        for (Player player : players) {
+            player.setHost(false);
+        }
+
+        newHost.setHost(true);
+
+        return newHost;
+    }
+}
@@ -0,0 +1,198 @@
+package websocket;
+
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+// The lobby browser's view of the lobbies: name, player count and whether a game has started, ordered by name.
+// It is kept up to date as lobbies change instead of being rebuilt from the lobby map on every LIST, and every
+// change bumps a version so subscribers can tell which deltas are newer than their snapshot:
+//   LOBBIES <version> <matching> <offset>\n(<name> <players> OPEN|STARTED\n)...
+//   LOBBY <version> ADD|UPDATE <name> <players> OPEN|STARTED, LOBBY <version> REMOVE <name>
+//
+// Responses are cached until the next change, so clients polling the same page get the same String back.
+// Changes and their deltas happen under the directory's lock, so subscribers see versions in order. Callers may
+// hold a lobby's lock when calling in, the directory never takes one
+public class LobbyDirectory {
+
+    // Distinct pages cached between changes, more than this and the cache starts over
+    private static final int MAX_CACHED_PAGES = 64;
+
+    // Sends a frame to the connections, called with the directory's lock held
+    private final BiConsumer<List<WebSocket>, String> publisher;
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    private final Set<WebSocket> subscribers = new LinkedHashSet<>();
+
+    // Rebuilt lazily after a subscribe or unsubscribe
+    private List<WebSocket> subscriberList = Collections.emptyList();
+
+    private long version;
+
+    // Built lazily, all of them are dropped on the next change
+    private Entry[] snapshot;
+
+    private String channels;
+
+    private final Map<String, String> pages = new HashMap<>();
+
+    public LobbyDirectory(BiConsumer<List<WebSocket>, String> publisher) {
+        this.publisher = publisher;
+    }
+
+    // Add the lobby or refresh its entry, call with the lobby's lock held so its state is read consistently
+    public synchronized void update(Lobby lobby) {
+        update(lobby.getName(), lobby.size(), lobby.isStarted());
+    }
+
+    public synchronized void update(String name, int players, boolean started) {
+        Entry entry = new Entry(name, players, started);
+        Entry previous = entries.put(entry.name, entry);
+
+        if (entry.equals(previous)) return;
+
+        changed();
+        publish("LOBBY " + version + (previous == null ? " ADD " : " UPDATE ") + entry.format());
+    }
+
+    public synchronized void remove(String name) {
+        if (entries.remove(name) == null) return;
+
+        changed();
+        publish("LOBBY " + version + " REMOVE " + name);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // The plain LIST reply, every lobby name
+    public synchronized String list() {
+        if (channels != null) return channels;
+
+        if (entries.isEmpty()) {
+            channels = "CHANNELS No channels available.";
+        } else {
+            StringBuilder list = new StringBuilder("CHANNELS ");
+
+            for (String name : entries.keySet()) {
+                list.append(name).append("\n");
+            }
+
+            channels = list.toString();
+        }
+
+        return channels;
+    }
+
+    // One page of the lobbies with at least minPlayers players, only those not yet started if openOnly
+    public synchronized String page(int offset, int limit, boolean openOnly, int minPlayers) {
+        String key = offset + " " + limit + " " + openOnly + " " + minPlayers;
+        String page = pages.get(key);
+
+        if (page != null) return page;
+
+        Entry[] entries = snapshot();
+        StringBuilder lines = new StringBuilder();
+        int matching = 0;
+
+        for (Entry entry : entries) {
+            if (openOnly && entry.started || entry.players < minPlayers) continue;
+
+            if (matching >= offset && matching - offset < limit) lines.append(entry.format()).append("\n");
+            matching++;
+        }
+
+        page = "LOBBIES " + version + " " + matching + " " + offset + "\n" + lines;
+
+        if (pages.size() >= MAX_CACHED_PAGES) pages.clear();
+        pages.put(key, page);
+
+        return page;
+    }
+
+    // Send the connection every lobby, then a LOBBY delta for each change until it unsubscribes or closes
+    public synchronized void subscribe(WebSocket conn) {
+        if (subscribers.add(conn)) subscriberList = null;
+
+        publisher.accept(List.of(conn), page(0, Integer.MAX_VALUE, false, 0));
+    }
+
+    public synchronized boolean unsubscribe(WebSocket conn) {
+        if (!subscribers.remove(conn)) return false;
+
+        subscriberList = null;
+
+        return true;
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private Entry[] snapshot() {
+        if (snapshot == null) snapshot = entries.values().toArray(new Entry[0]);
+
+        return snapshot;
+    }
+
+    private void changed() {
+        version++;
+        snapshot = null;
+        channels = null;
+        pages.clear();
+    }
+
+    private void publish(String delta) {
+        if (subscribers.isEmpty()) return;
+
+        if (subscriberList == null) subscriberList = Collections.unmodifiableList(new ArrayList<>(subscribers));
+
+        publisher.accept(subscriberList, delta);
+    }
+
+    private static class Entry {
+        private final String name;
+
+        private final int players;
+
+        private final boolean started;
+
+        private Entry(String name, int players, boolean started) {
+            this.name = name;
+            this.players = players;
+            this.started = started;
+        }
+
+        private String format() {
+            return name + " " + players + (started ? " STARTED" : " OPEN");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+
+            Entry entry = (Entry) o;
+
+            return players == entry.players && started == entry.started && name.equals(entry.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * name.hashCode() + players) + Boolean.hashCode(started);
+        }
+    }
+}
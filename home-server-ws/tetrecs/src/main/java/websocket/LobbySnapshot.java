@@ -0,0 +1,224 @@
+package websocket;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Saves lobby state to a small binary file and loads it back, so a restart keeps every lobby, roster, host,
+// score and game in progress. Restored players have no connection until their client sends RESUME with the
+// token it was given on JOIN.
+//
+// The file is rewritten whole each time: lobby state is a few dozen bytes per player, so a full rewrite is
+// cheaper and simpler than appending changes and compacting. It is written to a temporary file in the same
+// directory and moved over the old one, so a crash mid-write leaves the previous snapshot intact.
+//
+// A server holds a lock on <file>.lock while it owns the snapshot, so two servers pointed at the same file
+// refuse to start instead of overwriting each other's lobbies.
+//
+// Layout, big-endian, strings as modified UTF-8 with a 2-byte length:
+//   magic "TTRS", format version, lobby count, then per lobby:
+//   name, started, roster version, has pieces, [seed, pieces generated, piece cursor], player count,
+//   then per player: username, resume token, host, score, lives
+public class LobbySnapshot {
+
+    private static final int MAGIC = 0x54545253;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path path;
+
+    private FileChannel lockChannel;
+
+    public LobbySnapshot(Path path) {
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Claim the snapshot for this server. Throws IllegalStateException if another server, in this process or
+    // another one, already holds it
+    public synchronized void lock() throws IOException {
+        if (lockChannel != null) return;
+
+        Path lockFile = path.resolveSibling(path.getFileName() + ".lock");
+        FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        if (lock == null) {
+            channel.close();
+            throw new IllegalStateException(path + " is already used by another server, give each one its own "
+                    + "tetrecs.snapshot.file");
+        }
+
+        lockChannel = channel;
+    }
+
+    // Release the lock, closing the channel drops it
+    public synchronized void unlock() throws IOException {
+        if (lockChannel == null) return;
+
+        lockChannel.close();
+        lockChannel = null;
+    }
+
+    // Locks each lobby in turn while it is encoded, so every lobby is consistent but not the set as a whole
+    public byte[] encode(Collection<Lobby> lobbies) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            List<Lobby> open = new ArrayList<>(lobbies.size());
+
+            for (Lobby lobby : lobbies) {
+                if (!lobby.isClosed()) open.add(lobby);
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(open.size());
+
+            for (Lobby lobby : open) {
+                synchronized (lobby) {
+                    encode(out, lobby);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Writing to memory failed", e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void encode(DataOutputStream out, Lobby lobby) throws IOException {
+        PieceSequence pieces = lobby.getPiecesIfAny();
+
+        out.writeUTF(lobby.getName());
+        out.writeBoolean(lobby.isStarted());
+        out.writeLong(lobby.getRosterVersion());
+        out.writeBoolean(pieces != null);
+
+        if (pieces != null) {
+            out.writeLong(pieces.getSeed());
+            out.writeInt(pieces.getGenerated());
+            out.writeInt(pieces.getCursor());
+        }
+
+        out.writeInt(lobby.size());
+
+        for (Player player : lobby.getPlayers()) {
+            String token = player.getResumeToken();
+
+            out.writeUTF(player.getUsername());
+            out.writeUTF(token != null ? token : "");
+            out.writeBoolean(player.isHost());
+            out.writeInt(player.getScore());
+            out.writeInt(player.getLives());
+        }
+    }
+
+    public void write(byte[] snapshot) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+
+        try {
+            Files.write(temp, snapshot);
+
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Lobbies from the last snapshot with their players detached, or none if there is no snapshot yet. Throws
+    // IOException if the file is unreadable or not a snapshot this version understands
+    public List<Lobby> read() throws IOException {
+        List<Lobby> lobbies = new ArrayList<>();
+
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            if (in.readInt() != MAGIC) throw new IOException(path + " is not a lobby snapshot");
+
+            int version = in.readInt();
+
+            if (version != FORMAT_VERSION) throw new IOException(path + " has unknown snapshot version " + version);
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                lobbies.add(decode(in));
+            }
+        } catch (NoSuchFileException e) {
+            return lobbies;
+        } catch (EOFException e) {
+            throw new IOException(path + " is truncated", e);
+        }
+
+        return lobbies;
+    }
+
+    private static Lobby decode(DataInputStream in) throws IOException {
+        Lobby lobby = new Lobby(in.readUTF());
+        boolean started = in.readBoolean();
+        long rosterVersion = in.readLong();
+        PieceSequence pieces = null;
+
+        if (in.readBoolean()) {
+            long seed = in.readLong();
+            int generated = in.readInt();
+            int cursor = in.readInt();
+
+            try {
+                pieces = PieceSequence.restore(seed, generated, cursor);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt snapshot, " + e.getMessage(), e);
+            }
+        }
+
+        lobby.restore(started, rosterVersion, pieces);
+
+        int players = in.readInt();
+
+        for (int i = 0; i < players; i++) {
+            String username = in.readUTF();
+            String token = in.readUTF();
+            Player player = new Player(username, null, in.readBoolean(), in.readInt(), in.readInt());
+
+            player.setResumeToken(token.isEmpty() ? null : token);
+            player.setLobby(lobby);
+            lobby.addPlayer(player);
+        }
+
+        return lobby;
+    }
+}
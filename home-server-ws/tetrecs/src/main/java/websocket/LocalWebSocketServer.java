@@ -2,13 +2,34 @@ package websocket;
 
 import org.java_websocket.server.WebSocketServer;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.Protocol;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -18,441 +39,1461 @@ public class LocalWebSocketServer extends WebSocketServer {
 
     private static final Logger logger = LogManager.getLogger(LocalWebSocketServer.class);
 
-    private Map<String, Set<Player>> channels = new HashMap<>();
+    // Points each cluster node gets on the hash ring
+    private static final int CLUSTER_RING_POINTS = 128;
 
-    private Map<WebSocket, String> clientChannel = new HashMap<>();
+    private static final String LIST_USAGE = "ERROR Expected LIST <offset> <limit> [OPEN] [<min players>]";
+
+    private static final String PIECES_USAGE =
+            "ERROR Expected PIECES <from>, a game has pieces 0 to " + (PieceSequence.MAX_PIECES - 1);
+
+    // Callbacks arrive on several decoder threads, so shared state lives in concurrent maps and each
+    // lobby is locked on its own (see Lobby) rather than behind one server-wide lock
+    private final Map<String, Lobby> channels = new ConcurrentHashMap<>();
+
+    // Session registry, maps each connection straight to its Player (and through it, its lobby)
+    private final Map<WebSocket, Player> sessions = new ConcurrentHashMap<>();
 
     private final ScoreDatabase scoreDatabase;
 
-    public LocalWebSocketServer(InetSocketAddress address) {
-        super(address);
+    private final ScoreWriter scoreWriter;
+
+    private final int scoresMaxPageSize;
+
+    private final int rankRadius;
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    private final CommandDispatcher dispatcher = new CommandDispatcher(metrics);
+
+    // Binary frames bypass the dispatcher, so they are timed together under one pseudo-command
+    private final ServerMetrics.CommandMetrics binaryMetrics = metrics.command("BINARY");
+
+    // Null when tetrecs.metrics.port is 0 or the port could not be bound
+    private final MetricsHttpServer metricsHttpServer;
+
+    // Set in virtual-thread mode, runs blocking commands off the WebSocket worker threads
+    private final ConnectionExecutor connectionExecutor;
+
+    // Periodic server-side work, such as the scores tick
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lobby-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Lobbies with score or lives changes since their last snapshot, each queued at most once
+    private final Queue<Lobby> dirtyLobbies = new ConcurrentLinkedQueue<>();
+
+    private final long scoresTickMillis;
+
+    private final Backpressure backpressure;
+
+    // Players owed the scores snapshot that was held back while their connection was congested
+    private final Set<Player> deferredScores = ConcurrentHashMap.newKeySet();
+
+    // Connections already scheduled to be dropped for falling too far behind
+    private final Set<WebSocket> slowConsumers = ConcurrentHashMap.newKeySet();
+
+    private final int pieceBatchSize;
+
+    // This node's own lobbies, which cluster peers subscribe to with LISTSUB LOCAL
+    private final LobbyDirectory lobbyDirectory = new LobbyDirectory(this::broadcastText);
+
+    // What LIST and LISTSUB serve, every node's lobbies in a cluster and the same as lobbyDirectory otherwise
+    private final LobbyDirectory listDirectory;
+
+    // Null when running standalone
+    private final HashRing ring;
+
+    private final String clusterSelf;
+
+    private final List<ClusterPeer> peers = new ArrayList<>();
+
+    private final long clusterReconnectMillis;
+
+    // Null when tetrecs.snapshot.file is empty
+    private final LobbySnapshot lobbySnapshot;
+
+    private final long snapshotIntervalMillis;
+
+    // Set by anything a snapshot records, cleared when one is written
+    private final AtomicBoolean snapshotDirty = new AtomicBoolean();
 
-        this.scoreDatabase = new ScoreDatabase();
+    // Every player in a lobby by its resume token
+    private final Map<String, Player> resumablePlayers = new ConcurrentHashMap<>();
+
+    // Players without a connection, until a client takes them back or their deadline passes
+    private final Set<Player> detachedPlayers = ConcurrentHashMap.newKeySet();
+
+    private final long resumeGraceNanos;
+
+    private final long disconnectGraceNanos;
+
+    private final SecureRandom tokenRandom = new SecureRandom();
+
+    // Set once shutdown begins, connections closed from then on keep their players for the snapshot
+    private volatile boolean stopping;
+
+    private final int listMaxPageSize;
+
+    private final int maxLobbies;
+
+    private final int maxPlayersPerLobby;
+
+    private final long lobbyCreateGraceNanos;
+
+    private final long lobbyIdleTimeoutNanos;
+
+    private final long lobbyReapIntervalMillis;
+
+    public LocalWebSocketServer(ServerConfig config) {
+        // Clients may ask for the binary subprotocol, the empty protocol keeps plain text clients working
+        super(new InetSocketAddress(config.getHost(), config.getPort()), config.getDecoders(),
+                List.of(new Draft_6455(Collections.emptyList(),
+                        List.of(new Protocol(BinaryProtocol.SUBPROTOCOL), new Protocol("")))));
+
+        this.scoreDatabase = new ScoreDatabase(config, metrics);
+        this.scoreWriter = new ScoreWriter(scoreDatabase, config.getScoreQueueCapacity(), config.getScoreBatchSize());
+        this.scoresMaxPageSize = config.getScoresMaxPageSize();
+        this.rankRadius = config.getRankRadius();
+        this.scoresTickMillis = config.getScoresTickMillis();
+        this.pieceBatchSize = Math.min(config.getPieceBatchSize(), PieceSequence.MAX_PIECES);
+        this.backpressure = new Backpressure(config);
+        this.listMaxPageSize = config.getListMaxPageSize();
+        this.maxLobbies = config.getMaxLobbies();
+        this.maxPlayersPerLobby = config.getMaxPlayersPerLobby();
+        this.lobbyCreateGraceNanos = TimeUnit.MILLISECONDS.toNanos(config.getLobbyCreateGraceMillis());
+        this.lobbyIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLobbyIdleTimeoutMillis());
+        this.lobbyReapIntervalMillis = config.getLobbyReapIntervalMillis();
+        this.clusterSelf = config.getClusterSelf();
+        this.clusterReconnectMillis = config.getClusterReconnectMillis();
+
+        if (config.getClusterNodes().isEmpty()) {
+            this.ring = null;
+            this.listDirectory = lobbyDirectory;
+        } else {
+            if (!config.getClusterNodes().contains(clusterSelf)) {
+                throw new IllegalArgumentException("tetrecs.cluster.self must be one of tetrecs.cluster.nodes "
+                        + config.getClusterNodes() + ", was '" + clusterSelf + "'");
+            }
+
+            this.ring = new HashRing(config.getClusterNodes(), CLUSTER_RING_POINTS);
+            this.listDirectory = new LobbyDirectory(this::broadcastText);
+
+            for (String node : config.getClusterNodes()) {
+                if (!node.equals(clusterSelf)) {
+                    peers.add(new ClusterPeer(node, listDirectory, (int) clusterReconnectMillis));
+                }
+            }
+
+            logger.info("Cluster node {} of {}", clusterSelf, config.getClusterNodes());
+        }
+
+        if ("virtual".equals(config.getExecutionMode())) {
+            this.connectionExecutor = new ConnectionExecutor();
+            dispatcher.setExecutor(connectionExecutor);
+
+            logger.info("Blocking commands will run on virtual threads");
+        } else {
+            this.connectionExecutor = null;
+        }
+
+        this.metricsHttpServer = createMetricsHttpServer(config);
+
+        this.snapshotIntervalMillis = config.getSnapshotIntervalMillis();
+        this.resumeGraceNanos = TimeUnit.MILLISECONDS.toNanos(config.getResumeGraceMillis());
+        this.disconnectGraceNanos = TimeUnit.MILLISECONDS.toNanos(config.getDisconnectGraceMillis());
+        this.lobbySnapshot = config.getSnapshotFile().isEmpty() ? null : new LobbySnapshot(Path.of(config.getSnapshotFile()));
+
+        if (lobbySnapshot != null) {
+            try {
+                lobbySnapshot.lock();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not lock " + lobbySnapshot.getPath(), e);
+            }
+
+            restoreSnapshot();
+        }
+
+        registerCommands();
+        dispatcher.sampleLogging(config.getLogSampleEvery(), "SCORE", "LIVES", "PIECE", "PIECES", "SCORES");
+    }
+
+    // Bring back the lobbies from the last snapshot with every player detached, waiting for its client to RESUME.
+    // A snapshot that cannot be read is logged and skipped rather than stopping the server from starting
+    private void restoreSnapshot() {
+        List<Lobby> lobbies;
+
+        try {
+            lobbies = lobbySnapshot.read();
+        } catch (IOException e) {
+            logger.error("Could not restore lobbies from {}, starting without them, {}", lobbySnapshot.getPath(),
+                    e.getMessage());
+            return;
+        }
+
+        long now = System.nanoTime();
+        int players = 0;
+
+        for (Lobby lobby : lobbies) {
+            if (ring != null && !ring.owner(lobby.getName()).equals(clusterSelf)) {
+                logger.warn("Not restoring lobby {}, it now belongs to {}", lobby.getName(), ring.owner(lobby.getName()));
+                continue;
+            }
+
+            synchronized (lobby) {
+                for (Player player : lobby.getPlayers()) {
+                    player.setResumeDeadline(now + resumeGraceNanos);
+                    detachedPlayers.add(player);
+
+                    if (player.getResumeToken() != null) resumablePlayers.put(player.getResumeToken(), player);
+                }
+
+                players += lobby.size();
+                channels.put(lobby.getName(), lobby);
+                updateDirectory(lobby);
+            }
+        }
+
+        logger.info("Restored {} lobbies and {} players from {}", channels.size(), players, lobbySnapshot.getPath());
+    }
+
+    private MetricsHttpServer createMetricsHttpServer(ServerConfig config) {
+        if (config.getMetricsPort() <= 0) return null;
+
+        try {
+            return new MetricsHttpServer(config.getMetricsHost(), config.getMetricsPort(), this::formatMetrics);
+        } catch (IOException e) {
+            logger.warn("Metrics endpoint disabled, could not bind {}:{}, {}", config.getMetricsHost(),
+                    config.getMetricsPort(), e.getMessage());
+            return null;
+        }
     }
 
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
-        logger.info("New connection: " + conn.getRemoteSocketAddress());
+        logger.info("New connection: {}{}", conn.getRemoteSocketAddress(),
+                BinaryProtocol.isNegotiated(conn) ? " (binary)" : "");
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-        String channelName = clientChannel.remove(conn);
+        Player player = sessions.get(conn);
 
-        if (channelName != null) {
-            Set<Player> players = channels.get(channelName);
+        if (player != null && !stopping) dispatcher.execute(conn, () -> disconnected(player, conn));
+        unsubscribeLobbyList(conn);
+        if (connectionExecutor != null) connectionExecutor.remove(conn);
 
-            if (players != null) {
-                players.removeIf(player -> player.getConn().equals(conn));
+        logger.info("Connection closed: {} (Exit Code {})", conn.getRemoteSocketAddress(), code);
+    }
 
-                boolean wasHost = players.stream().noneMatch(Player::isHost);
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        if (!dispatcher.dispatch(conn, message)) {
+            metrics.unknownCommand();
+            logger.warn("Unknown command from {} -> {}", conn.getRemoteSocketAddress(), message);
+        }
+    }
 
-                if (wasHost && !players.isEmpty()) promoteNewHost(channelName);
+    // One handler per command, looked up by the command token rather than a startsWith cascade. Commands that
+    // touch the database are registered as blocking so virtual-thread mode can take them off the worker threads
+    private void registerCommands() {
+        dispatcher.register("Marco", this::handleMarco);
+        dispatcher.register("CREATE", this::handleCreate);
+        dispatcher.register("LIST", this::handleList);
+        dispatcher.register("LISTSUB", this::handleListSub);
+        dispatcher.register("LISTUNSUB", this::handleListUnsub);
+        dispatcher.register("JOIN", this::handleJoin);
+        dispatcher.register("PART", this::handlePart);
+        dispatcher.register("RESUME", this::handleResume);
+        dispatcher.register("USERS", this::handleUsers);
+        dispatcher.register("MSG", this::handleMsg);
+        dispatcher.register("NICK", this::handleNick);
+        dispatcher.register("START", this::handleStart);
+        dispatcher.register("PIECE", this::handlePiece);
+        dispatcher.register("PIECES", this::handlePieces);
+        dispatcher.register("HISCORES", this::handleHiScores, true);
+        dispatcher.register("HISCORE", this::handleHiScore, true);
+        dispatcher.register("RANK", this::handleRank, true);
+        dispatcher.register("SCORES", this::handleScores);
+        dispatcher.register("SCORE", this::handleScore);
+        dispatcher.register("LIVES", this::handleLives);
+        dispatcher.register("DIE", this::handleDie);
+    }
 
-                broadcastUsers(channelName);
-            }
-        }
+    void handleMarco(WebSocket conn, String message, int args) {
+        logger.debug("Sending message -> Polo");
 
-        logger.info("Connection closed: " + conn.getRemoteSocketAddress() + " (Exit Code " + code + ")");
+        send(conn, "Polo");
     }
 
-    @Override
-    public void onMessage(WebSocket conn, String message) {
-        logger.info("Message received -> " + message);
+    // Handle CREATE command (create a new lobby/channel)
+    void handleCreate(WebSocket conn, String message, int args) {
+        String lobbyName = CommandArgs.token(message, args);
 
-        if (message.startsWith("Marco")) {
-            logger.info("Sending message -> Polo");
+        if (lobbyName.isEmpty()) {
+            send(conn, "ERROR No lobby name given");
+        } else if (redirect(conn, lobbyName)) {
+            logger.debug("CREATE {} redirected to the node that owns it", lobbyName);
+        } else if (maxLobbies > 0 && channels.size() >= maxLobbies) {
+            // Checked before the insert, so concurrent CREATEs can overshoot the limit by a few
+            logger.warn("Lobby {} not created, already at the limit of {} lobbies", lobbyName, maxLobbies);
 
-            conn.send("Polo");
+            metrics.lobbyLimitRejected();
+            send(conn, "ERROR Too many lobbies, try again later");
+        } else if (!createLobby(lobbyName)) {
+            logger.warn("Attempt at lobby creation failed. {} already exists", lobbyName);
+
+            send(conn, "ERROR " + lobbyName + " already exists");
         }
+    }
 
-        // Handle CREATE command (create a new lobby/channel)
-        if (message.startsWith("CREATE")) {
-            String[] parts = message.split(" ");
-            String lobbyName = parts[1];
+    // LIST on its own replies with every lobby name. LIST <offset> <limit> [OPEN] [<min players>] replies with
+    // a LOBBIES page of the lobbies matching the filters, OPEN leaving out lobbies whose game has started
+    void handleList(WebSocket conn, String message, int args) {
+        int start = CommandArgs.skipSpaces(message, args);
 
-            if (lobbyExists(lobbyName)) {
-                logger.warn("Attempt at lobby creation failed. " + lobbyName + " already exists");
+        if (start == message.length()) {
+            send(conn, listDirectory.list());
+            return;
+        }
 
-                conn.send("ERROR " + lobbyName + " already exists");
-            } else {
-                createLobby(lobbyName, conn);
+        int offset;
+        int limit;
+        boolean openOnly = false;
+        int minPlayers = 0;
+
+        try {
+            offset = CommandArgs.parseInt(message, start);
 
-                logger.info("Lobby created successfully (" + lobbyName + ")");
+            int next = CommandArgs.skipSpaces(message, CommandArgs.tokenEnd(message, start));
+            limit = CommandArgs.parseInt(message, next);
+
+            for (int i = CommandArgs.skipSpaces(message, CommandArgs.tokenEnd(message, next)); i < message.length();
+                 i = CommandArgs.skipSpaces(message, CommandArgs.tokenEnd(message, i))) {
+                if (message.startsWith("OPEN", i) && CommandArgs.tokenEnd(message, i) == i + 4) {
+                    openOnly = true;
+                } else {
+                    minPlayers = CommandArgs.parseInt(message, i);
+                }
             }
+        } catch (NumberFormatException e) {
+            send(conn, LIST_USAGE);
+            return;
         }
 
-        if (message.startsWith("LIST")) {
-            if (!channels.isEmpty()) {
-                // Concatenate all the channel names with newlines
-                String channelsList = String.join("\n", channels.keySet()) + "\n";
+        if (offset < 0 || limit < 1 || minPlayers < 0) {
+            send(conn, LIST_USAGE);
+            return;
+        }
 
-                logger.info("Current channels: " + channelsList);
+        send(conn, listDirectory.page(offset, Math.min(limit, listMaxPageSize), openOnly, minPlayers));
+    }
 
-                conn.send("CHANNELS " + channelsList);
-            } else {
-                conn.send("CHANNELS No channels available.");
-            }
+    // Subscribers get every lobby as one LOBBIES frame, then a LOBBY delta per change instead of polling LIST.
+    // LISTSUB LOCAL is how cluster peers follow the lobbies this node owns
+    void handleListSub(WebSocket conn, String message, int args) {
+        if (CommandArgs.token(message, args).equals("LOCAL")) {
+            lobbyDirectory.subscribe(conn);
+        } else {
+            listDirectory.subscribe(conn);
         }
 
-        if (message.startsWith("JOIN")) {
-            String[] parts = message.split(" ", 2);
-            String channelName = parts[1];
+        logger.debug("{} subscribed to the lobby list", conn.getRemoteSocketAddress());
+    }
 
-            if (lobbyExists(channelName)) {
-                joinChannel(channelName, conn);
+    void handleListUnsub(WebSocket conn, String message, int args) {
+        unsubscribeLobbyList(conn);
+    }
 
-                logger.info(conn + " joined channel " + channelName);
+    private void unsubscribeLobbyList(WebSocket conn) {
+        lobbyDirectory.unsubscribe(conn);
+        if (listDirectory != lobbyDirectory) listDirectory.unsubscribe(conn);
+    }
 
-                conn.send("JOIN");
-                broadcastUsers(channelName);
-            } else {
-                logger.warn(channelName + " does not exist");
+    void handleJoin(WebSocket conn, String message, int args) {
+        String channelName = message.substring(args);
+        Lobby lobby = channels.get(channelName);
 
-                conn.send("ERROR Channel " + channelName + " does not exist.");
-            }
+        if (lobby == null && redirect(conn, channelName)) return;
+
+        if (lobby != null) {
+            joinChannel(lobby, conn);
+
+            logger.info("{} joined channel {}", conn.getRemoteSocketAddress(), channelName);
+        } else {
+            logger.warn("{} does not exist", channelName);
+
+            send(conn, "ERROR Channel " + channelName + " does not exist.");
         }
+    }
 
-        if (message.startsWith("PART")) {
-            String channelName = clientChannel.get(conn);
+    // In a cluster, a lobby this node does not own is answered with REDIRECT <node uri> <lobby>. The client
+    // reconnects to that node and sends the command again. Returns false if the lobby belongs here
+    private boolean redirect(WebSocket conn, String lobbyName) {
+        if (ring == null) return false;
 
-            if (channelName != null) {
-                Set<Player> players = channels.get(channelName);
+        String owner = ring.owner(lobbyName);
 
-                if (players != null) {
-                    players.removeIf(player -> player.getConn().equals(conn));
+        if (owner.equals(clusterSelf)) return false;
 
-                    boolean wasHost = players.stream().noneMatch(Player::isHost);
+        metrics.redirect();
+        send(conn, "REDIRECT " + owner + " " + lobbyName);
 
-                    if (wasHost && !players.isEmpty()) {
-                        promoteNewHost(channelName);
-                    }
+        return true;
+    }
 
-                    broadcastUsers(channelName);
+    // RESUME <token> takes back a player from a lost connection, keeping its name, host role, score and place in
+    // the lobby, so the lobby sees no one leave or join. The client gets RESUMED <lobby> <name>, HOST if it is the
+    // host, then the roster and scores. The old connection may not have been noticed as dead yet, in which case
+    // it is closed
+    void handleResume(WebSocket conn, String message, int args) {
+        String token = CommandArgs.token(message, args);
+        Player player = token.isEmpty() ? null : resumablePlayers.get(token);
 
-                    clientChannel.remove(conn);
-                    logger.info(conn.getRemoteSocketAddress() + " left channel " + channelName);
-                }
-            } else {
-                logger.warn("Client " + conn.getRemoteSocketAddress() + " is not in any channel");
-            }
+        if (player == null) {
+            send(conn, "ERROR Unknown or expired resume token");
+            return;
         }
 
-        if (message.startsWith("USERS")) {
-            String channelName = clientChannel.get(conn);
+        Player existing = sessions.get(conn);
 
-            if (channelName != null) {
-                logger.info("Retrieving user list for channel " + channelName);
+        if (existing != null && existing != player) leaveChannel(existing);
 
-                sendUsersInChannel(conn, channelName);
-            } else {
-                logger.warn("Client " + conn.getRemoteSocketAddress() + " requested USERS but is not in any channel");
+        Lobby lobby = player.getLobby();
+        WebSocket previous;
+
+        synchronized (lobby) {
+            if (lobby.isClosed() || !lobby.contains(player)) {
+                send(conn, "ERROR Unknown or expired resume token");
+                return;
             }
+
+            previous = player.getConn() != conn ? player.getConn() : null;
+
+            if (previous != null) {
+                sessions.remove(previous, player);
+                deferredScores.remove(player);
+            }
+
+            detachedPlayers.remove(player);
+            lobby.rebind(player, conn);
+            sessions.put(conn, player);
+            metrics.resumed();
+
+            logger.info("{} resumed {} in {}", conn.getRemoteSocketAddress(), player.getUsername(), lobby.getName());
+
+            send(conn, "RESUMED " + lobby.getName() + " " + player.getUsername());
+            if (player.isHost()) send(conn, "HOST");
+            sendUsersInChannel(conn, lobby);
+            sendScores(conn, lobby);
         }
 
-        if (message.startsWith("MSG")) {
-            String channelName = clientChannel.get(conn);
+        if (previous != null) previous.close(CloseFrame.NORMAL, "Resumed on another connection");
+    }
+
+    void handlePart(WebSocket conn, String message, int args) {
+        Player player = getPlayerByConn(conn);
 
-            if (channelName != null) {
-                String chatMessage = message.substring(4);
+        if (player != null) {
+            Lobby lobby = leaveChannel(player);
 
-                Player sender = getPlayerByConn(conn);
-                String username = sender != null ? sender.getUsername() : "Unknown";
+            logger.info("{} left channel {}", conn.getRemoteSocketAddress(), lobby.getName());
+        } else {
+            logger.warn("Client {} is not in any channel", conn.getRemoteSocketAddress());
+        }
+    }
 
-                String formattedMessage = username + ": " + chatMessage;
+    void handleUsers(WebSocket conn, String message, int args) {
+        Lobby lobby = getLobbyByConn(conn);
 
-                logger.info(formattedMessage);
+        if (lobby != null) {
+            logger.debug("Retrieving user list for channel {}", lobby.getName());
 
-                broadcastMessage(channelName, formattedMessage, conn);
-            }
+            sendUsersInChannel(conn, lobby);
+        } else {
+            logger.warn("Client {} requested USERS but is not in any channel", conn.getRemoteSocketAddress());
         }
+    }
 
-        if (message.startsWith("NICK")) {
-            String[] parts = message.split(" ", 2);
+    void handleMsg(WebSocket conn, String message, int args) {
+        Player sender = getPlayerByConn(conn);
 
-            if (parts.length > 1) {
-                String newNick = parts[1].trim();
-                String channelName = clientChannel.get(conn);
+        if (sender != null) {
+            String chatMessage = message.substring(args);
 
-                if (channelName != null) {
-                    Player player = getPlayerByConn(conn);
+            String formattedMessage = sender.getUsername() + ": " + chatMessage;
 
-                    if (player != null) {
-                        player.setUsername(newNick);
+            logger.debug("[{}] {}", sender.getLobby().getName(), formattedMessage);
 
-                        logger.info(conn.getRemoteSocketAddress() + " changed nickname to " + newNick);
+            broadcastMessage(sender.getLobby(), formattedMessage);
+        }
+    }
 
-                        conn.send("NICK " + newNick);
+    void handleNick(WebSocket conn, String message, int args) {
+        String newNick = CommandArgs.rest(message, args);
+        Player player = getPlayerByConn(conn);
 
-                        broadcastUsers(channelName);
-                    }
+        if (!newNick.isEmpty() && player != null) {
+            Lobby lobby = player.getLobby();
+
+            // A line break would split the USERNICK event and the USERS list, a trailing (Host) would pass for the
+            // host marker in USERS, and ':' separates the fields of a SCORES line
+            if (newNick.indexOf('\n') >= 0 || newNick.indexOf('\r') >= 0 || newNick.indexOf(':') >= 0
+                    || newNick.endsWith("(Host)")) {
+                send(conn, "ERROR Nicknames cannot contain line breaks or ':' or end in (Host)");
+                return;
+            }
+
+            synchronized (lobby) {
+                String oldNick = player.getUsername();
+
+                // Roster events name members, so two members may never share a name
+                if (!newNick.equals(oldNick) && lobby.hasPlayerNamed(newNick)) {
+                    send(conn, "ERROR " + newNick + " is already taken");
+                    return;
                 }
+
+                player.setUsername(newNick);
+
+                logger.info("{} changed nickname to {}", conn.getRemoteSocketAddress(), newNick);
+
+                send(conn, "NICK " + newNick);
+
+                broadcastRosterChange(lobby, "USERNICK", oldNick + "\n" + newNick);
             }
         }
+    }
 
-        if (message.startsWith("START")) {
-            String channelName = clientChannel.get(conn);
+    void handleStart(WebSocket conn, String message, int args) {
+        Lobby lobby = getLobbyByConn(conn);
 
-            if (channelName != null) {
-                Set<Player> playersInChannel = channels.get(channelName);
+        if (lobby != null) {
+            logger.info("Broadcasting START message to channel {}", lobby.getName());
 
-                if (playersInChannel != null) {
-                    logger.info("Broadcasting START message to channel " + channelName);
+            // Every member gets the seed and the first batch of pieces in the same frames, so they all start
+            // the game on the same sequence
+            synchronized (lobby) {
+                PieceSequence pieces = lobby.startPieces(ThreadLocalRandom.current().nextLong());
+                updateDirectory(lobby);
 
-                    for (Player player : playersInChannel) {
-                        player.getConn().send("START");
-                    }
-                } else {
-                    logger.warn("Channel " + channelName + " does not exist or has no players");
-
-                    conn.send("ERROR Channel " + channelName + " does not exist or is empty");
-                }
-            } else {
-                logger.warn("Client " + conn.getRemoteSocketAddress() + " attempted START but is not in a channel");
+                broadcastToLobby(lobby, "START");
+                broadcastToLobby(lobby, "SEED " + pieces.getSeed());
+                broadcastToLobby(lobby, "PIECES " + pieces.batch(0, pieceBatchSize),
+                        () -> BinaryProtocol.encodePieces(pieces, 0, pieceBatchSize));
             }
+        } else {
+            logger.warn("Client {} attempted START but is not in a channel", conn.getRemoteSocketAddress());
         }
+    }
 
-        if (message.startsWith("PIECE")) {
-            String channelName = clientChannel.get(conn);
+    // Single piece for clients that ask one at a time, drawn from the lobby's sequence and sent to everyone
+    void handlePiece(WebSocket conn, String message, int args) {
+        Lobby lobby = getLobbyByConn(conn);
 
-            if (channelName != null) {
-                Set<Player> playersInChannel = channels.get(channelName);
+        if (lobby != null) broadcastPiece(conn, lobby);
+    }
 
-                if (playersInChannel != null) {
-                    int pieceValue = (int) (Math.random() * 15);
+    // PIECES <from>, the next batch of the lobby's pieces starting at index from, sent only to the asker.
+    // Clients ask again before running out, the sequence is shared so every member sees the same pieces
+    void handlePieces(WebSocket conn, String message, int args) {
+        Lobby lobby = getLobbyByConn(conn);
 
-                    String pieceMessage = "PIECE " + pieceValue;
+        if (lobby == null) {
+            send(conn, "ERROR Not in a channel");
+            return;
+        }
 
-                    for (Player player : playersInChannel) {
-                        player.getConn().send(pieceMessage);
-                    }
+        String batch;
 
-                    logger.info("Broadcasted PIECE " + pieceValue + " to channel " + channelName);
-                }
+        try {
+            int from = CommandArgs.parseInt(message, args);
+
+            synchronized (lobby) {
+                batch = lobby.getPieces().batch(from, pieceBatchSize);
             }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            send(conn, PIECES_USAGE);
+            return;
+        }
+
+        send(conn, "PIECES " + batch);
+    }
+
+    // HISCORES returns the top of the leaderboard, HISCORES <offset> <limit> any page of the full ranking
+    void handleHiScores(WebSocket conn, String message, int args) {
+        int start = CommandArgs.skipSpaces(message, args);
+
+        if (start == message.length()) {
+            send(conn, "HISCORES " + scoreDatabase.getScores());
+            return;
         }
 
-        if (message.startsWith("HISCORES")) {
-            String hiScores = scoreDatabase.getScores();
+        int offset;
+        int limit;
 
-            conn.send("HISCORES " + hiScores);
+        try {
+            offset = CommandArgs.parseInt(message, start);
+            limit = CommandArgs.parseInt(message, CommandArgs.tokenEnd(message, start));
+        } catch (NumberFormatException e) {
+            send(conn, "ERROR Expected HISCORES <offset> <limit>");
             return;
         }
 
-        if (message.startsWith("HISCORE")) {
-            String scoreData = message.replace("HISCORE", "").trim();
-            String[] parts = scoreData.split(":");
+        if (offset < 0 || limit < 1) {
+            send(conn, "ERROR Expected HISCORES <offset> <limit>");
+            return;
+        }
+
+        send(conn, "HISCORES " + scoreDatabase.getScores(offset, Math.min(limit, scoresMaxPageSize)));
+    }
 
-            String username = parts[0].trim();
-            int score = Integer.parseInt(parts[1].trim());
+    // RANK <name>, the player's position out of the total plus their neighbours on the leaderboard
+    void handleRank(WebSocket conn, String message, int args) {
+        String name = CommandArgs.rest(message, args);
+        String rank = name.isEmpty() ? null : scoreDatabase.getRank(name, rankRadius);
 
-            if (scoreDatabase.upsertScore(username, score)) conn.send("NEWSCORE");
+        if (rank != null) {
+            send(conn, "RANK " + rank);
+        } else {
+            send(conn, "ERROR No score recorded for " + name);
+        }
+    }
 
+    // HISCORE <name>:<score>
+    void handleHiScore(WebSocket conn, String message, int args) {
+        int colon = message.indexOf(':', args);
 
+        if (colon < 0) {
+            logger.warn("Malformed HISCORE from {} -> {}", conn.getRemoteSocketAddress(), message);
+
+            send(conn, "ERROR Expected HISCORE <name>:<score>");
             return;
         }
 
-        if (message.startsWith("SCORES")) {
-            String channelName = clientChannel.get(conn);
+        String username = message.substring(args, colon).trim();
+        int score;
+
+        try {
+            score = CommandArgs.parseInt(message, colon + 1);
+        } catch (NumberFormatException e) {
+            send(conn, "ERROR Expected HISCORE <name>:<score>");
+            return;
+        }
 
-            if (channelName != null) {
-                Player sender = getPlayerByConn(conn);
+        // Written behind by the score writer, NEWSCORE goes out once the batch holding it has committed
+        boolean queued = scoreWriter.submit(username, score, success -> {
+            if (success && conn.isOpen()) send(conn, "NEWSCORE");
+        });
 
-                if (sender != null) {
-                    String formattedMsg = "SCORES "
-                            + sender.getUsername() + ":"
-                            + sender.getScore() + ":"
-                            + sender.getLives() + "\n";
+        if (!queued) {
+            logger.warn("Score queue full, rejected HISCORE from {}", conn.getRemoteSocketAddress());
 
-                    broadcastScores(channelName, conn, formattedMsg);
-                }
-            }
+            send(conn, "ERROR Score queue full, try again");
+        }
+    }
+
+    // Scores are pushed to the lobby by the tick, a client asking for them just makes sure the next
+    // snapshot goes out even if nothing changed since the last one
+    void handleScores(WebSocket conn, String message, int args) {
+        Player sender = getPlayerByConn(conn);
+
+        if (sender != null) markScoresDirty(sender.getLobby());
+    }
+
+    void handleScore(WebSocket conn, String message, int args) {
+        int newScore;
+
+        try {
+            newScore = CommandArgs.parseInt(message, args);
+        } catch (NumberFormatException e) {
+            send(conn, "ERROR Usage: SCORE <n>");
             return;
         }
 
-        if (message.startsWith("SCORE")) {
-            int newScore = Integer.parseInt(message.replace("SCORE", "").trim());
-            Player player = getPlayerByConn(conn);
+        Player player = getPlayerByConn(conn);
 
-            player.setScore(newScore);
+        if (player != null) updateScore(player, newScore);
+    }
+
+    void handleLives(WebSocket conn, String message, int args) {
+        int newLives;
+
+        try {
+            newLives = CommandArgs.parseInt(message, args);
+        } catch (NumberFormatException e) {
+            send(conn, "ERROR Usage: LIVES <n>");
             return;
         }
 
-        if (message.startsWith("LIVES")) {
-            String[] parts = message.split(" ", 2);
-            int newLives = Integer.parseInt(parts[1].trim());
-            Player player = getPlayerByConn(conn);
+        Player player = getPlayerByConn(conn);
 
-            player.setLives(newLives);
+        if (player != null) updateLives(player, newLives);
+    }
+
+    void handleDie(WebSocket conn, String message, int args) {
+        Player player = getPlayerByConn(conn);
+
+        if (player != null) leaveChannel(player);
+    }
+
+    // Binary frames carry the high-frequency commands for connections that negotiated BinaryProtocol
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        logger.trace("Binary frame received from {}, {} bytes", conn.getRemoteSocketAddress(), message.remaining());
+
+        if (!BinaryProtocol.isNegotiated(conn)) {
+            send(conn, "ERROR Binary frames need the " + BinaryProtocol.SUBPROTOCOL + " subprotocol");
+            return;
+        }
+
+        dispatcher.execute(conn, () -> {
+            long start = System.nanoTime();
+
+            try {
+                handleBinary(conn, message);
+            } finally {
+                binaryMetrics.record(System.nanoTime() - start);
+            }
+        });
+    }
+
+    // Decodes inside the task, so a malformed frame gets the same ERROR whether it ran inline or was queued
+    void handleBinary(WebSocket conn, ByteBuffer message) {
+        try {
+            dispatchBinary(conn, message);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            logger.warn("Malformed binary frame from {}, {}", conn.getRemoteSocketAddress(), e.getMessage());
+
+            send(conn, "ERROR Malformed binary frame");
         }
+    }
+
+    private void dispatchBinary(WebSocket conn, ByteBuffer message) {
+        byte opcode = message.get();
+        Player player = getPlayerByConn(conn);
 
-        if (message.startsWith("DIE")) {
-            String channelName = clientChannel.get(conn);
-            Player player = getPlayerByConn(conn);
+        switch (opcode) {
+            case BinaryProtocol.SCORE -> {
+                int newScore = BinaryProtocol.readVarint(message);
 
-            removePlayerFromChannel(player, channelName);
+                if (player != null) updateScore(player, newScore);
+            }
+            case BinaryProtocol.LIVES -> {
+                int newLives = BinaryProtocol.readVarint(message);
+
+                if (player != null) updateLives(player, newLives);
+            }
+            case BinaryProtocol.PIECE -> {
+                if (player != null) broadcastPiece(conn, player.getLobby());
+            }
+            case BinaryProtocol.PIECES -> {
+                int from = BinaryProtocol.readVarint(message);
+
+                if (player != null) sendBinaryPieces(conn, player.getLobby(), from);
+            }
+            case BinaryProtocol.SCORES -> {
+                if (player != null) markScoresDirty(player.getLobby());
+            }
+            default -> send(conn, "ERROR Unknown binary opcode " + opcode);
         }
     }
 
     @Override
     public void onError(WebSocket conn, Exception e) {
-        logger.error("Error: " + e.getMessage());
+        logger.error("Error: {}", e.getMessage());
 
         if (conn != null) {
-            logger.warn("Connection: " + conn.getRemoteSocketAddress());
+            logger.warn("Connection: {}", conn.getRemoteSocketAddress());
         }
     }
 
     @Override
     public void onStart() {
+        scheduler.scheduleAtFixedRate(this::tickScores, scoresTickMillis, scoresTickMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::reapLobbies, lobbyReapIntervalMillis, lobbyReapIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        if (metricsHttpServer != null) metricsHttpServer.start();
+
+        if (lobbySnapshot != null) {
+            scheduler.scheduleWithFixedDelay(() -> writeSnapshot(false), snapshotIntervalMillis, snapshotIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        if (!peers.isEmpty()) {
+            scheduler.scheduleWithFixedDelay(this::connectPeers, 0, clusterReconnectMillis, TimeUnit.MILLISECONDS);
+        }
+
         logger.info("WebSocket server started successfully");
     }
 
-    private boolean lobbyExists(String lobbyName) {
-        return channels.containsKey(lobbyName); // Check if the lobby name exists in the map
+    // Stop accepting connections, flush queued scores, then release the long-lived database connections
+    public void shutdown() throws InterruptedException {
+        stopping = true;
+        stop(1000);
+
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        if (lobbySnapshot != null) {
+            writeSnapshot(true);
+            unlockSnapshot();
+        }
+        for (ClusterPeer peer : peers) {
+            peer.close();
+        }
+        if (metricsHttpServer != null) metricsHttpServer.close();
+        if (connectionExecutor != null) connectionExecutor.close();
+        scoreWriter.close();
+        scoreDatabase.close();
     }
 
-    // Create a new lobby (initialize a new set for that channel)
-    private void createLobby(String lobbyName, WebSocket conn) {
-        channels.putIfAbsent(lobbyName, new HashSet<>());
+    // Runs on the scheduler, and once more on shutdown after the connections are closed. Skipped when nothing a
+    // snapshot records has changed since the last one, unless forced
+    private void writeSnapshot(boolean force) {
+        if (!snapshotDirty.getAndSet(false) && !force) return;
+
+        long start = System.nanoTime();
+
+        try {
+            byte[] snapshot = lobbySnapshot.encode(channels.values());
 
-        logger.info("Lobby created successfully (" + lobbyName + ")");
+            lobbySnapshot.write(snapshot);
+            metrics.snapshotWritten(snapshot.length, System.nanoTime() - start);
+
+            logger.debug("Wrote lobby snapshot, {} bytes", snapshot.length);
+        } catch (IOException | RuntimeException e) {
+            snapshotDirty.set(true);
+            metrics.snapshotFailed();
+
+            logger.error("Could not write lobby snapshot to {}, ", lobbySnapshot.getPath(), e);
+        }
     }
 
-    private void promoteNewHost(String channelName) {
-        Set<Player> players = channels.get(channelName);
+    private void unlockSnapshot() {
+        try {
+            lobbySnapshot.unlock();
+        } catch (IOException e) {
+            logger.warn("Could not release the lock on {}, {}", lobbySnapshot.getPath(), e.getMessage());
+        }
+    }
 
-        if (players != null && !players.isEmpty()) {
-            Player newHost = players.iterator().next();
+    // Create a new lobby, returns false if the name is already taken. putIfAbsent keeps two concurrent
+    // CREATEs for the same name from both succeeding
+    private boolean createLobby(String lobbyName) {
+        Lobby lobby = new Lobby(lobbyName);
 
-            for (Player player : players) {
-                player.setHost(false);
-            }
+        // Held so the reaper cannot remove the lobby between it appearing in the map and in the directory
+        synchronized (lobby) {
+            if (channels.putIfAbsent(lobbyName, lobby) != null) return false;
 
-            newHost.setHost(true);
-            newHost.getConn().send("HOST");
+            updateDirectory(lobby);
+        }
+
+        metrics.lobbyCreated();
+        logger.info("Lobby created successfully ({})", lobbyName);
+
+        return true;
+    }
 
-            logger.info(newHost.getUsername() + " is now the host of " + channelName);
+    private void promoteNewHost(Lobby lobby) {
+        synchronized (lobby) {
+            Player newHost = lobby.promoteNewHost();
 
-            broadcastUsers(channelName);
+            if (newHost != null) {
+                if (newHost.getConn() != null) send(newHost.getConn(), "HOST");
+
+                logger.info("{} is now the host of {}", newHost.getUsername(), lobby.getName());
+
+                broadcastRosterChange(lobby, "USERHOST", newHost.getUsername());
+            }
         }
     }
 
-    // Add the client to the specified channel
-    private void joinChannel(String channelName, WebSocket conn) {
-        channels.putIfAbsent(channelName, new HashSet<>());
+    // Add the client to the specified lobby
+    private void joinChannel(Lobby lobby, WebSocket conn) {
+        String channelName = lobby.getName();
+        Player existing = sessions.get(conn);
 
         // Check if conn is already in channelName
-        if (clientChannel.containsKey(conn) && clientChannel.get(conn).equals(channelName)) {
+        if (existing != null && existing.getLobby() == lobby) {
 
-            conn.send("ERROR already in channel " + channelName);
+            send(conn, "ERROR already in channel " + channelName);
 
-            logger.warn(conn.getRemoteSocketAddress() + " attempted to join channel " + channelName + " but is already in it");
+            logger.warn("{} attempted to join channel {} but is already in it", conn.getRemoteSocketAddress(), channelName);
             return;
         }
 
-        String username = "Player" + (channels.get(channelName).size() + 1);
-        Player newPlayer = new Player(username, conn, false, 0, 3);
+        // Refuse a full lobby before leaving the previous one, so a rejected move leaves the player where it was
+        if (isFull(lobby)) {
+            rejectFull(conn, lobby);
+            return;
+        }
+
+        // A connection belongs to at most one lobby, so leave the previous one first. Only one lobby lock
+        // is ever held at a time, which keeps lobby-to-lobby moves deadlock free
+        if (existing != null) leaveChannel(existing);
+
+        synchronized (lobby) {
+            // Reclaimed or filled up since the checks above
+            if (lobby.isClosed()) {
+                send(conn, "ERROR Channel " + channelName + " does not exist.");
+                return;
+            }
+
+            if (isFull(lobby)) {
+                rejectFull(conn, lobby);
+                return;
+            }
+
+            String username = lobby.nextPlayerName();
+            Player newPlayer = new Player(username, conn, false, 0, 3);
+            newPlayer.setLobby(lobby);
+            newPlayer.setResumeToken(newResumeToken());
+            resumablePlayers.put(newPlayer.getResumeToken(), newPlayer);
+
+            if (lobby.isEmpty()) {
+                newPlayer.setHost(true);
+
+                send(conn, "HOST");
+
+                logger.info("{} is now the host of {}", newPlayer.getUsername(), channelName);
+            }
+
+            lobby.addPlayer(newPlayer);
+            updateDirectory(lobby);
 
-        Set<Player> channelPlayers = channels.get(channelName);
-        if (channelPlayers.size() == 0) {
-            newPlayer.setHost(true);
+            // Track the connections player and current lobby
+            sessions.put(conn, newPlayer);
 
-            conn.send("HOST");
+            logger.info("{} joined channel {} as {}", conn.getRemoteSocketAddress(), channelName, username);
 
-            logger.info(newPlayer.getUsername() + " is now the host of " + channelName);
+            send(conn, "JOIN");
+            send(conn, "TOKEN " + newPlayer.getResumeToken());
+
+            // The joiner's snapshot is taken after its own USERJOIN, so it already includes that version
+            broadcastRosterChange(lobby, "USERJOIN", username);
+            sendUsersInChannel(conn, lobby);
         }
+    }
 
-        channels.get(channelName).add(newPlayer);
+    // 128 random bits, URL-safe so clients can keep it anywhere
+    private String newResumeToken() {
+        byte[] token = new byte[16];
 
-        // Track the connections current channel
-        clientChannel.put(conn, channelName);
+        tokenRandom.nextBytes(token);
 
-        logger.info(conn.getRemoteSocketAddress() + " joined channel " + channelName + " as " + username);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
     }
 
-    private void sendUsersInChannel(WebSocket conn, String channelName) {
-        Set<Player> usersInChannel = channels.get(channelName);
+    // Full roster snapshot, sent on JOIN and USERS. ROSTER carries the version the snapshot is at
+    private void sendUsersInChannel(WebSocket conn, Lobby lobby) {
+        synchronized (lobby) {
+            send(conn, "ROSTER " + lobby.getRosterVersion());
+            send(conn, "USERS " + formatUsers(lobby));
+        }
+    }
 
-        if (usersInChannel != null) {
-            StringBuilder usersList = new StringBuilder();
+    private boolean isFull(Lobby lobby) {
+        return maxPlayersPerLobby > 0 && lobby.size() >= maxPlayersPerLobby;
+    }
 
-            for (Player player : usersInChannel) {
-                usersList.append(player.getUsername());
+    private void rejectFull(WebSocket conn, Lobby lobby) {
+        logger.warn("{} could not join {}, it is full", conn.getRemoteSocketAddress(), lobby.getName());
 
-                if (player.isHost()) usersList.append(" (Host)");
-                usersList.append("\n");
+        metrics.lobbyFullRejected();
+        send(conn, "ERROR Lobby " + lobby.getName() + " is full");
+    }
+
+    // Remove the player from its lobby and the session registry, returns the lobby it left. The last player
+    // out reclaims the lobby
+    private Lobby leaveChannel(Player player) {
+        Lobby lobby = player.getLobby();
+        WebSocket conn = player.getConn();
+
+        if (conn != null) sessions.remove(conn, player);
+        forgetResumable(player);
+        deferredScores.remove(player);
+
+        synchronized (lobby) {
+            // Already removed when the reaper closed the lobby
+            if (!lobby.removePlayer(player)) return lobby;
+
+            if (lobby.isEmpty()) {
+                reclaimLobby(lobby);
+                metrics.lobbyReclaimedEmpty();
+                return lobby;
             }
 
-            conn.send("USERS " + usersList);
-        } else {
-            conn.send("ERROR Channel " + channelName + " does not exist.");
+            updateDirectory(lobby);
+            broadcastRosterChange(lobby, "USERLEFT", player.getUsername());
+
+            if (player.isHost()) promoteNewHost(lobby);
         }
+
+        return lobby;
     }
 
-    private void removePlayerFromChannel(Player player, String channelName) {
-        if (player.isHost()) {
-            promoteNewHost(channelName);
+    // A dropped connection detaches its player instead of removing it, so a client on a flaky network can RESUME
+    // within the grace period and the lobby never sees it leave, a host change or the rejoin
+    private void disconnected(Player player, WebSocket conn) {
+        if (disconnectGraceNanos <= 0 || player.getResumeToken() == null) {
+            if (player.getConn() == conn) leaveChannel(player);
+            return;
+        }
+
+        Lobby lobby = player.getLobby();
+
+        synchronized (lobby) {
+            sessions.remove(conn, player);
+
+            // Resumed on another connection or gone from the lobby since
+            if (player.getConn() != conn || !lobby.contains(player)) return;
+
+            deferredScores.remove(player);
+            lobby.rebind(player, null);
+            player.setResumeDeadline(System.nanoTime() + disconnectGraceNanos);
+            detachedPlayers.add(player);
+            metrics.detached();
         }
 
-        channels.remove(player);
+        logger.debug("{} detached from {}, waiting for RESUME", player.getUsername(), lobby.getName());
     }
 
-    private Player getPlayerByConn(WebSocket conn) {
-        for (Set<Player> players : channels.values()) {
-            for (Player player : players) {
-                if (player.getConn().equals(conn)) return player;
+    private void forgetResumable(Player player) {
+        detachedPlayers.remove(player);
+
+        if (player.getResumeToken() != null) resumablePlayers.remove(player.getResumeToken(), player);
+    }
+
+    // Callers must hold the lobby's lock
+    private void updateDirectory(Lobby lobby) {
+        snapshotDirty.set(true);
+        lobbyDirectory.update(lobby);
+        if (listDirectory != lobbyDirectory) listDirectory.update(lobby);
+    }
+
+    // Callers must hold the lobby's lock. Closing it first turns away any JOIN that looked it up before it
+    // left the map
+    private void reclaimLobby(Lobby lobby) {
+        snapshotDirty.set(true);
+        lobby.close();
+        channels.remove(lobby.getName(), lobby);
+        lobbyDirectory.remove(lobby.getName());
+        if (listDirectory != lobbyDirectory) listDirectory.remove(lobby.getName());
+
+        logger.info("Lobby {} reclaimed", lobby.getName());
+    }
+
+    private void connectPeers() {
+        for (ClusterPeer peer : peers) {
+            try {
+                peer.connect();
+            } catch (RuntimeException e) {
+                logger.error("Could not connect to cluster peer {}, ", peer.getUri(), e);
             }
         }
+    }
 
-        return null;
+    // Runs on the scheduler. Removes lobbies that were created but never joined within the grace period, and
+    // closes lobbies that have gone without a broadcast or score change for the idle timeout, removing their
+    // players. Empty lobbies that were played in are reclaimed by leaveChannel straight away
+    private void reapLobbies() {
+        try {
+            long now = System.nanoTime();
+
+            expireDetachedPlayers(now);
+
+            for (Lobby lobby : channels.values()) {
+                synchronized (lobby) {
+                    if (lobby.isClosed()) continue;
+
+                    if (lobby.isEmpty()) {
+                        if (now - lobby.getCreatedAt() >= lobbyCreateGraceNanos) {
+                            reclaimLobby(lobby);
+                            metrics.lobbyReclaimedUnused();
+                        }
+                    } else if (lobbyIdleTimeoutNanos > 0 && now - lobby.getLastActivity() >= lobbyIdleTimeoutNanos) {
+                        closeIdleLobby(lobby);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Lobby reaper failed, ", e);
+        }
     }
 
-    private void broadcastScores(String channelName, WebSocket conn, String msg) {
-        Set<Player> usersInChannel = channels.get(channelName);
+    // Detached players whose client has not come back by their deadline leave their lobby as if they had sent
+    // PART. RESUME rebinds under the same lobby lock, so a player is either resumed or expired, never both
+    private void expireDetachedPlayers(long now) {
+        for (Player player : detachedPlayers) {
+            if (now - player.getResumeDeadline() < 0) continue;
 
-        if (usersInChannel != null) {
-            for (Player player : usersInChannel) {
-                if (!player.getConn().equals(conn)) {
-                    player.getConn().send(msg);
-                }
+            Lobby lobby = player.getLobby();
+
+            synchronized (lobby) {
+                if (player.getConn() != null) continue;
+
+                metrics.resumeExpired();
+                leaveChannel(player);
             }
-            logger.info("Broadcasted SCORES message: " + msg + " in channel: " + channelName);
-        } else {
-            logger.warn("Channel " + channelName + " does not exist.");
+
+            logger.info("{} was not resumed in time and left {}", player.getUsername(), lobby.getName());
         }
     }
 
-    private void broadcastUsers(String channelName) {
-        Set<Player> usersInChannel = channels.get(channelName);
+    // Callers must hold the lobby's lock. The players stay connected and can JOIN or CREATE another lobby
+    private void closeIdleLobby(Lobby lobby) {
+        List<Player> players = new ArrayList<>(lobby.getPlayers());
 
-        if (usersInChannel != null) {
-            StringBuilder usersList = new StringBuilder();
+        for (Player player : players) {
+            WebSocket conn = player.getConn();
 
-            for (Player player : usersInChannel) {
-                usersList.append(player.getUsername());
+            deferredScores.remove(player);
+            forgetResumable(player);
+            lobby.removePlayer(player);
 
-                if (player.isHost()) usersList.append(" (Host)");
-                usersList.append("\n");
+            if (conn != null) {
+                sessions.remove(conn, player);
+                send(conn, "ERROR Lobby " + lobby.getName() + " was closed for inactivity");
             }
+        }
+
+        reclaimLobby(lobby);
+        metrics.lobbyReclaimedIdle(players.size());
+    }
+
+    Player getPlayerByConn(WebSocket conn) {
+        return sessions.get(conn);
+    }
+
+    private Lobby getLobbyByConn(WebSocket conn) {
+        Player player = sessions.get(conn);
+
+        return player != null ? player.getLobby() : null;
+    }
 
-            for (Player player : usersInChannel) {
-                player.getConn().send("USERS " + usersList);
+    private void updateScore(Player player, int newScore) {
+        if (player.getScore() != newScore) {
+            player.setScore(newScore);
+            markScoresDirty(player.getLobby());
+        }
+    }
+
+    private void updateLives(Player player, int newLives) {
+        if (player.getLives() != newLives) {
+            player.setLives(newLives);
+            markScoresDirty(player.getLobby());
+        }
+    }
+
+    private void broadcastPiece(WebSocket conn, Lobby lobby) {
+        int piece;
+
+        synchronized (lobby) {
+            try {
+                piece = lobby.getPieces().next();
+            } catch (IndexOutOfBoundsException e) {
+                send(conn, "ERROR No pieces left in this game");
+                return;
+            }
+
+            broadcastToLobby(lobby, "PIECE " + piece, () -> BinaryProtocol.encodePiece(piece));
+        }
+
+        logger.trace("Broadcasted PIECE {} to channel {}", piece, lobby.getName());
+    }
+
+    private void sendBinaryPieces(WebSocket conn, Lobby lobby, int from) {
+        ByteBuffer batch;
+
+        synchronized (lobby) {
+            try {
+                batch = BinaryProtocol.encodePieces(lobby.getPieces(), from, pieceBatchSize);
+            } catch (IndexOutOfBoundsException e) {
+                send(conn, PIECES_USAGE);
+                return;
             }
-        } else {
-            logger.warn("Channel " + channelName + " does not exist");
         }
+
+        send(conn, batch);
     }
 
-    private void broadcastMessage(String channelName, String message, WebSocket sender) {
-        Set<Player> usersInChannel = channels.get(channelName);
+    private void markScoresDirty(Lobby lobby) {
+        snapshotDirty.set(true);
+        if (lobby.markScoresDirty()) dirtyLobbies.add(lobby);
+    }
 
-        if (usersInChannel != null) {
-            for (Player player : usersInChannel) {
-                player.getConn().send("MSG " + message);
+    // Runs every scoresTickMillis. Each lobby that changed gets one SCORES frame listing every member as
+    // name:score:lives, so outbound score traffic per lobby is bounded by the tick rate however often
+    // clients send SCORE, LIVES or SCORES
+    private void tickScores() {
+        try {
+            Lobby lobby;
+
+            while ((lobby = dirtyLobbies.poll()) != null) {
+                if (lobby.clearScoresDirty()) broadcastScores(lobby);
             }
-        } else {
-            sender.send("ERROR Channel " + channelName + " does not exist");
+
+            flushDeferredScores();
+        } catch (RuntimeException e) {
+            // An exception escaping would cancel the scheduled tick for good
+            logger.error("Scores tick failed, ", e);
+        }
+    }
+
+    // Congested members are left out, they get the newest snapshot once their connection drains instead of
+    // every one in between
+    void broadcastScores(Lobby lobby) {
+        synchronized (lobby) {
+            if (lobby.isEmpty()) return;
+
+            lobby.touch();
+
+            broadcastTo(withoutCongested(lobby.getTextConnections()), withoutCongested(lobby.getBinaryConnections()),
+                    formatScores(lobby), () -> BinaryProtocol.encodeScores(lobby.getPlayers()));
+        }
+    }
+
+    // Callers must hold the lobby's lock
+    private String formatScores(Lobby lobby) {
+        StringBuilder snapshot = new StringBuilder("SCORES ");
+
+        for (Player player : lobby.getPlayers()) {
+            snapshot.append(player.getUsername()).append(":")
+                    .append(player.getScore()).append(":")
+                    .append(player.getLives()).append("\n");
+        }
+
+        return snapshot.toString();
+    }
+
+    // The connections that are keeping up, the rest are recorded as owed a snapshot. Returns the list itself
+    // when nobody is behind, which is the usual case
+    private List<WebSocket> withoutCongested(List<WebSocket> connections) {
+        List<WebSocket> ready = null;
+
+        for (int i = 0; i < connections.size(); i++) {
+            WebSocket conn = connections.get(i);
+
+            if (backpressure.check(conn) == Backpressure.State.OK) {
+                if (ready != null) ready.add(conn);
+                continue;
+            }
+
+            if (ready == null) ready = new ArrayList<>(connections.subList(0, i));
+
+            Player player = sessions.get(conn);
+
+            if (player != null) {
+                deferredScores.add(player);
+                metrics.snapshotCoalesced();
+            }
+        }
+
+        return ready != null ? ready : connections;
+    }
+
+    // Runs on the scores tick. A deferred player whose connection has drained gets its lobby's current
+    // snapshot, which supersedes every one it missed
+    private void flushDeferredScores() {
+        for (Iterator<Player> iterator = deferredScores.iterator(); iterator.hasNext(); ) {
+            Player player = iterator.next();
+            WebSocket conn = player.getConn();
+
+            if (conn == null || sessions.get(conn) != player) {
+                iterator.remove();
+                continue;
+            }
+
+            if (backpressure.check(conn) != Backpressure.State.OK) continue;
+
+            iterator.remove();
+
+            sendScores(conn, player.getLobby());
         }
     }
-}
\ No newline at end of file
+
+    // The lobby's current scores to one member, in its protocol
+    private void sendScores(WebSocket conn, Lobby lobby) {
+        synchronized (lobby) {
+            if (BinaryProtocol.isNegotiated(conn)) {
+                send(conn, BinaryProtocol.encodeScores(lobby.getPlayers()));
+            } else {
+                send(conn, formatScores(lobby));
+            }
+        }
+    }
+
+    // Callers must hold the lobby's lock so the roster cannot change between being built and sent
+    private String formatUsers(Lobby lobby) {
+        StringBuilder usersList = new StringBuilder();
+
+        for (Player player : lobby.getPlayers()) {
+            usersList.append(player.getUsername());
+
+            if (player.isHost()) usersList.append(" (Host)");
+            usersList.append("\n");
+        }
+
+        return usersList.toString();
+    }
+
+    // Roster changes go to the lobby as one small event instead of the whole roster, so churn in a lobby of N
+    // costs O(N) rather than O(N^2). Each event carries the lobby's roster version after the change:
+    //   USERJOIN <version> <name>, USERLEFT <version> <name>, USERHOST <version> <name>,
+    //   USERNICK <version> <old name>\n<new name>
+    // Clients apply events newer than their ROSTER snapshot and ignore the rest. Every change and its event
+    // happen under the lobby's lock, so members see versions in order
+    void broadcastRosterChange(Lobby lobby, String event, String detail) {
+        snapshotDirty.set(true);
+
+        synchronized (lobby) {
+            broadcastToLobby(lobby, event + " " + lobby.nextRosterVersion() + " " + detail);
+        }
+    }
+
+    private void broadcastMessage(Lobby lobby, String message) {
+        synchronized (lobby) {
+            broadcastToLobby(lobby, "MSG " + message);
+        }
+    }
+
+    // The frame is built once, then UTF-8 encoded and framed once per draft by WebSocketServer.broadcast, which
+    // hands the same frame data to every member instead of each send() re-encoding the string
+    private void broadcastToLobby(Lobby lobby, String frame) {
+        lobby.touch();
+        broadcastText(lobby.getConnections(), frame);
+    }
+
+    private void broadcastText(List<WebSocket> connections, String frame) {
+        if (connections.isEmpty()) return;
+
+        broadcast(frame, connections);
+        metrics.broadcast(connections.size(), ServerMetrics.utf8Length(frame));
+        checkBacklogs(connections);
+    }
+
+    // For frames with a BinaryProtocol form, each member gets its own encoding. The binary frame is only
+    // built if a member negotiated it
+    private void broadcastToLobby(Lobby lobby, String frame, Supplier<ByteBuffer> binaryFrame) {
+        lobby.touch();
+        broadcastTo(lobby.getTextConnections(), lobby.getBinaryConnections(), frame, binaryFrame);
+    }
+
+    private void broadcastTo(List<WebSocket> textConnections, List<WebSocket> binaryConnections, String frame,
+                             Supplier<ByteBuffer> binaryFrame) {
+        broadcastText(textConnections, frame);
+
+        if (!binaryConnections.isEmpty()) {
+            ByteBuffer buffer = binaryFrame.get();
+            int bytes = buffer.remaining();
+
+            broadcast(buffer, binaryConnections);
+            metrics.broadcast(binaryConnections.size(), bytes);
+            checkBacklogs(binaryConnections);
+        }
+    }
+
+    private void checkBacklogs(List<WebSocket> connections) {
+        for (int i = 0; i < connections.size(); i++) {
+            checkBacklog(connections.get(i));
+        }
+    }
+
+    // A connection past the backpressure limits is dropped from the scheduler thread rather than here, since
+    // closing it runs onClose and the caller may be in the middle of a lobby update
+    private void checkBacklog(WebSocket conn) {
+        if (backpressure.check(conn) == Backpressure.State.OVERFLOWING && slowConsumers.add(conn)) {
+            scheduler.execute(() -> dropSlowConsumer(conn));
+        }
+    }
+
+    private void dropSlowConsumer(WebSocket conn) {
+        logger.warn("Disconnecting slow consumer {}, {} frames ({} bytes) queued", conn.getRemoteSocketAddress(),
+                Backpressure.queuedFrames(conn), Backpressure.queuedBytes(conn));
+
+        metrics.slowConsumerDropped();
+
+        // Closed without the closing handshake, a close frame would only queue behind the backlog
+        conn.closeConnection(CloseFrame.POLICY_VALIDATION, "Too far behind");
+        slowConsumers.remove(conn);
+    }
+
+    // Every frame to a single connection goes through here or send(WebSocket, ByteBuffer) so it is counted
+    private void send(WebSocket conn, String frame) {
+        conn.send(frame);
+        metrics.sent(1, ServerMetrics.utf8Length(frame));
+        checkBacklog(conn);
+    }
+
+    private void send(WebSocket conn, ByteBuffer frame) {
+        int bytes = frame.remaining();
+
+        conn.send(frame);
+        metrics.sent(1, bytes);
+        checkBacklog(conn);
+    }
+
+    // Prometheus text for the metrics endpoint, the recorded metrics plus gauges read off the server now
+    String formatMetrics() {
+        StringBuilder out = new StringBuilder(8192);
+
+        ServerMetrics.gauge(out, "tetrecs_connections", "Open WebSocket connections", getConnections().size());
+        ServerMetrics.gauge(out, "tetrecs_players", "Connections that are in a lobby", sessions.size());
+        ServerMetrics.gauge(out, "tetrecs_lobbies", "Lobbies that exist", channels.size());
+        ServerMetrics.gauge(out, "tetrecs_players_detached", "Players waiting for their client to RESUME",
+                detachedPlayers.size());
+        ServerMetrics.gauge(out, "tetrecs_lobby_list_subscribers", "Connections subscribed to lobby list deltas",
+                listDirectory.getSubscriberCount());
+
+        if (!peers.isEmpty()) {
+            int connected = 0;
+
+            for (ClusterPeer peer : peers) {
+                if (peer.isConnected()) connected++;
+            }
+
+            ServerMetrics.gauge(out, "tetrecs_cluster_peers_connected", "Cluster peers whose lobbies are being followed",
+                    connected);
+        }
+
+        long queuedFrames = 0;
+        long maxQueuedFrames = 0;
+
+        for (WebSocket conn : getConnections()) {
+            int frames = Backpressure.queuedFrames(conn);
+
+            queuedFrames += frames;
+            maxQueuedFrames = Math.max(maxQueuedFrames, frames);
+        }
+
+        ServerMetrics.gauge(out, "tetrecs_outbound_queued_frames", "Frames queued for all connections, not yet written", queuedFrames);
+        ServerMetrics.gauge(out, "tetrecs_outbound_queued_frames_max", "Most frames queued for any one connection", maxQueuedFrames);
+        ServerMetrics.gauge(out, "tetrecs_scores_deferred", "Players owed a held-back scores snapshot", deferredScores.size());
+
+        SizeHistogram lobbySizes = new SizeHistogram();
+
+        for (Lobby lobby : channels.values()) {
+            lobbySizes.record(lobby.size());
+        }
+
+        ServerMetrics.header(out, "tetrecs_lobby_players", "histogram", "Players per lobby");
+        lobbySizes.format(out, "tetrecs_lobby_players", "");
+
+        ServerMetrics.gauge(out, "tetrecs_score_queue_depth", "HISCORE submissions waiting to be written", scoreWriter.getQueueDepth());
+        ServerMetrics.counter(out, "tetrecs_score_submitted_total", "HISCORE submissions queued", scoreWriter.getSubmitted());
+        ServerMetrics.counter(out, "tetrecs_score_rejected_total", "HISCORE submissions refused with a full queue", scoreWriter.getRejected());
+        ServerMetrics.counter(out, "tetrecs_score_committed_total", "HISCORE submissions written", scoreWriter.getCommitted());
+        ServerMetrics.counter(out, "tetrecs_score_failed_total", "HISCORE submissions whose write failed", scoreWriter.getFailed());
+        ServerMetrics.counter(out, "tetrecs_score_batches_total", "Transactions committed by the score writer", scoreWriter.getBatches());
+        ServerMetrics.gauge(out, "tetrecs_score_queue_capacity", "HISCORE submissions the queue holds before refusing more", scoreWriter.getQueueCapacity());
+        ServerMetrics.counter(out, "tetrecs_score_commit_seconds_total", "Time spent committing score batches", scoreWriter.getTotalCommitNanos() / 1e9);
+        ServerMetrics.gauge(out, "tetrecs_score_commit_seconds_max", "Longest score batch commit", scoreWriter.getMaxCommitNanos() / 1e9);
+        ServerMetrics.gauge(out, "tetrecs_score_commit_seconds_last", "Time taken by the last score batch commit", scoreWriter.getLastCommitNanos() / 1e9);
+
+        metrics.format(out);
+
+        return out.toString();
+    }
+}
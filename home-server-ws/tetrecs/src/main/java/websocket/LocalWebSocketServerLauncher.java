@@ -2,20 +2,28 @@ package websocket;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.java_websocket.server.WebSocketServer;
-
-import java.net.InetSocketAddress;
 
 public class LocalWebSocketServerLauncher {
 
     private static final Logger logger = LogManager.getLogger(LocalWebSocketServerLauncher.class);
 
     public static void main(String[] args) {
-        String host = "0.0.0.0";
-        int port = 8887;
-        WebSocketServer localWebSocketServer = new LocalWebSocketServer(new InetSocketAddress(host, port));
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        LocalWebSocketServer localWebSocketServer = new LocalWebSocketServer(config);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                localWebSocketServer.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // log4j2.xml disables log4j's own hook, so the server's last lines are flushed here
+                LogManager.shutdown();
+            }
+        }, "shutdown"));
 
-        logger.info("Starting WebSocket server...");
+        logger.info("Starting WebSocket server on {}:{} with {} decoder threads...", config.getHost(), config.getPort(),
+                config.getDecoders());
 
         localWebSocketServer.run();
     }
@@ -0,0 +1,60 @@
+package websocket;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+// Serves the server's metrics in Prometheus text format at /metrics, on the JDK's built-in HTTP server so
+// no extra dependency is needed. Meant to be bound to a loopback address and scraped locally
+public class MetricsHttpServer implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(MetricsHttpServer.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    public MetricsHttpServer(String host, int port, Supplier<String> metrics) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.server.createContext("/metrics", exchange -> respond(exchange, metrics));
+    }
+
+    public void start() {
+        server.start();
+
+        logger.info("Serving metrics on http://{}:{}/metrics", server.getAddress().getHostString(),
+                server.getAddress().getPort());
+    }
+
+    private void respond(HttpExchange exchange, Supplier<String> metrics) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = metrics.get().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to serve metrics, ", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
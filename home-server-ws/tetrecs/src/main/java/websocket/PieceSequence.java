@@ -0,0 +1,109 @@
+package websocket;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// The pieces for one game, drawn from a generator seeded when the lobby starts. Pieces are generated on
+// demand and kept, so piece n is the same for every member however and whenever they ask for it. Each lobby
+// owns its own generator, guarded by the lobby's lock, instead of all lobbies sharing Math.random()
+public class PieceSequence {
+
+    public static final int PIECE_TYPES = 15;
+
+    // How far past the pieces generated so far a client may ask, stops one request generating millions
+    public static final int MAX_LOOKAHEAD = 4096;
+
+    // Longest game a lobby can play, far more pieces than anyone places in one game. Without a cap a client
+    // asking for ever later pieces would grow the sequence, and every snapshot of it, without bound
+    public static final int MAX_PIECES = 1 << 16;
+
+    private final long seed;
+
+    private final SplittableRandom random;
+
+    // Piece types fit in a byte
+    private byte[] pieces = new byte[64];
+
+    private int generated;
+
+    // Next piece handed out to clients still using single PIECE requests
+    private int cursor;
+
+    public PieceSequence(long seed) {
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+    }
+
+    // A sequence that carries on where a saved one left off. The same seed regenerates the same pieces
+    public static PieceSequence restore(long seed, int generated, int cursor) {
+        if (generated < 0 || generated > MAX_PIECES || cursor < 0 || cursor > generated) {
+            throw new IllegalArgumentException("Piece sequence of " + generated + " at " + cursor + " is out of range");
+        }
+
+        PieceSequence sequence = new PieceSequence(seed);
+
+        sequence.generate(generated);
+        sequence.cursor = cursor;
+
+        return sequence;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getGenerated() {
+        return generated;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    // Piece at the zero-based index of this game
+    public int get(int index) {
+        checkRange(index, 1);
+        generate(index + 1);
+
+        return pieces[index];
+    }
+
+    // Throws IndexOutOfBoundsException unless pieces from to from + count - 1 may be handed out. Long math, so
+    // a request near Integer.MAX_VALUE cannot wrap around into range
+    public void checkRange(int from, int count) {
+        if (from < 0 || count < 0 || (long) from + count > MAX_PIECES || from > (long) generated + MAX_LOOKAHEAD) {
+            throw new IndexOutOfBoundsException("Pieces " + from + " to " + ((long) from + count - 1)
+                    + " are out of range, a game has " + MAX_PIECES);
+        }
+    }
+
+    private void generate(int count) {
+        while (generated < count) {
+            if (generated == pieces.length) pieces = Arrays.copyOf(pieces, Math.min(pieces.length * 2, MAX_PIECES));
+
+            pieces[generated++] = (byte) random.nextInt(PIECE_TYPES);
+        }
+    }
+
+    // Throws IndexOutOfBoundsException once the game has handed out every piece, without moving the cursor
+    public int next() {
+        int piece = get(cursor);
+
+        cursor++;
+
+        return piece;
+    }
+
+    // Space-separated pieces from index from, prefixed by from itself
+    public String batch(int from, int count) {
+        checkRange(from, count);
+
+        StringBuilder batch = new StringBuilder(count * 3 + 8).append(from);
+
+        for (int i = from; i < from + count; i++) {
+            batch.append(" ").append(get(i));
+        }
+
+        return batch.toString();
+    }
+}
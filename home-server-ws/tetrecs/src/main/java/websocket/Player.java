@@ -2,14 +2,23 @@ package websocket;
 
 import org.java_websocket.WebSocket;
 
+// Fields are volatile, a player is updated by its own connection's worker thread and read by broadcasts on others
 public class Player {
-    private String username;
-    private WebSocket conn;
-    private boolean host;
+    private volatile String username;
+    private volatile WebSocket conn;
+    private volatile boolean host;
 
-    private int score;
+    private volatile int score;
 
-    private int lives;
+    private volatile int lives;
+
+    private volatile Lobby lobby;
+
+    // Issued on JOIN, lets a client that lost its connection take this player back with RESUME
+    private volatile String resumeToken;
+
+    // nanoTime by which a detached player must be resumed, only meaningful while getConn() is null
+    private volatile long resumeDeadline;
 
     public Player(String username, WebSocket conn, boolean host, int score, int lives) {
         this.username = username;
@@ -37,6 +46,16 @@ public class Player {
 
     public int getLives() { return lives; }
 
+    public Lobby getLobby() { return lobby; }
+
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    public long getResumeDeadline() {
+        return resumeDeadline;
+    }
+
     public void setUsername(String newUsername) {
         this.username = newUsername;
     }
@@ -52,4 +71,14 @@ public class Player {
     public void setScore(int score) { this.score = score; }
 
     public void setLives(int lives) { this.lives = lives; }
+
+    public void setLobby(Lobby lobby) { this.lobby = lobby; }
+
+    public void setResumeToken(String resumeToken) {
+        this.resumeToken = resumeToken;
+    }
+
+    public void setResumeDeadline(long resumeDeadline) {
+        this.resumeDeadline = resumeDeadline;
+    }
 }
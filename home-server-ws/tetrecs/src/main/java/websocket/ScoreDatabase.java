@@ -2,123 +2,336 @@ package websocket;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.sqlite.SQLiteConfig;
 
 import java.sql.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 //TODO: LOTS OF BUGS
-public class ScoreDatabase {
+public class ScoreDatabase implements AutoCloseable {
 
     private static final Logger logger = LogManager.getLogger(ScoreDatabase.class);
 
-    private static final String DATABASE_URL = "jdbc:sqlite:websocket_tetrecs_scores.db";
+    // Bump alongside a new case in migrate()
+    private static final int SCHEMA_VERSION = 3;
 
-    public ScoreDatabase() {
-        createTable();
-        createScores();
+    // Single atomic statement, resolved through the unique index on name, that only ever raises a score
+    private static final String UPSERT_SCORE_SQL = "INSERT INTO scores (name, score) VALUES (?, ?)\n"
+            + "ON CONFLICT(name) DO UPDATE SET score = excluded.score WHERE excluded.score > scores.score";
+
+    private static final String SELECT_ALL_SCORES_SQL = "SELECT name, score FROM scores";
+
+    // The database's one connection, open for its lifetime and guarded by its monitor. SQLite allows one writer
+    // at a time, and reads are served from the in-memory ranking, so besides writes the only query is loading
+    // that ranking at startup
+    private final DbConnection db;
+
+    private final Leaderboard leaderboard;
+
+    private final ScoreRanking ranking = new ScoreRanking();
+
+    private final ServerMetrics metrics;
+
+    public ScoreDatabase(ServerConfig config) {
+        this(config, new ServerMetrics());
     }
 
-    private void createTable() {
-        String sql = "CREATE TABLE IF NOT EXISTS scores (\n"
-                + "    name TEXT NOT NULL,\n"
-                + "    score INTEGER\n"
-                + ");";
+    public ScoreDatabase(ServerConfig config, ServerMetrics metrics) {
+        this.metrics = metrics;
 
-        try (Connection conn = connect();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.execute();
+        SQLiteConfig sqliteConfig = new SQLiteConfig();
+        sqliteConfig.setJournalMode(SQLiteConfig.JournalMode.valueOf(config.getDatabaseJournalMode()));
+        sqliteConfig.setSynchronous(SQLiteConfig.SynchronousMode.valueOf(config.getDatabaseSynchronous()));
+        sqliteConfig.setBusyTimeout(config.getDatabaseBusyTimeout());
+        sqliteConfig.setTempStore(SQLiteConfig.TempStore.MEMORY);
 
-            logger.info("Database scores.db created successfully");
-        } catch (SQLException e) {
-            logger.error("Failed to initialise database scores.db, ", e);
+        this.db = open(config.getDatabaseUrl(), sqliteConfig);
+
+        logger.info("Opened connection to {} (journal_mode={}, synchronous={})", config.getDatabaseUrl(),
+                config.getDatabaseJournalMode(), config.getDatabaseSynchronous());
+
+        this.leaderboard = new Leaderboard(config.getLeaderboardSize());
+
+        long start = System.nanoTime();
+        initialiseSchema();
+        metrics.databaseQuery("schema", System.nanoTime() - start);
+
+        start = System.nanoTime();
+        loadScores();
+        metrics.databaseQuery("load_scores", System.nanoTime() - start);
+    }
+
+    // Bring the schema up to SCHEMA_VERSION. A database already at that version only has its tables checked,
+    // so a normal restart costs two small queries. Otherwise the outstanding steps run in one transaction and
+    // the new version is recorded with them. Every step is idempotent, which also lets databases from before
+    // schema_version existed (version 0) be upgraded in place
+    private void initialiseSchema() {
+        synchronized (db) {
+            Connection conn = db.connection;
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER NOT NULL)");
+
+                int version = 0;
+
+                try (ResultSet resultSet = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+                    if (resultSet.next()) version = resultSet.getInt(1);
+                }
+
+                if (version == SCHEMA_VERSION && schemaValid(stmt)) {
+                    logger.info("Database schema is up to date (version {})", version);
+                    return;
+                }
+
+                if (version == SCHEMA_VERSION) {
+                    logger.warn("Database schema version {} is missing tables or indexes, rebuilding", version);
+                    version = 0;
+                }
+
+                conn.setAutoCommit(false);
+
+                try {
+                    for (int step = version + 1; step <= SCHEMA_VERSION; step++) {
+                        migrate(conn, stmt, step);
+                    }
+
+                    stmt.executeUpdate("DELETE FROM schema_version");
+                    stmt.executeUpdate("INSERT INTO schema_version (version) VALUES (" + SCHEMA_VERSION + ")");
+
+                    conn.commit();
+
+                    logger.info("Migrated database schema from version {} to {}", version, SCHEMA_VERSION);
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to initialise database scores.db, ", e);
+            }
         }
     }
 
-    public void createScores() {
-        logger.info("Creating new database");
+    private void migrate(Connection conn, Statement stmt, int step) throws SQLException {
+        switch (step) {
+            case 1 -> stmt.execute("CREATE TABLE IF NOT EXISTS scores (\n"
+                    + "    name TEXT NOT NULL,\n"
+                    + "    score INTEGER\n"
+                    + ")");
+            case 2 -> {
+                // Older tables had no uniqueness on name and may hold several rows per player. Keep each
+                // player's best row, then add the unique name index the upsert relies on and one for ordering
+                int removed = stmt.executeUpdate("DELETE FROM scores WHERE rowid NOT IN (\n"
+                        + "    SELECT rowid FROM (\n"
+                        + "        SELECT rowid, ROW_NUMBER() OVER (PARTITION BY name ORDER BY score DESC, rowid) AS rn FROM scores\n"
+                        + "    ) WHERE rn = 1\n"
+                        + ")");
 
-        String sql = "INSERT INTO scores(name, score) VALUES(?, ?)";
+                stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_scores_name ON scores(name)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_scores_score ON scores(score DESC)");
 
-        try (Connection conn = this.connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                logger.info("Removed {} duplicate score rows", removed);
+            }
+            case 3 -> seedScores(conn);
+            default -> throw new IllegalStateException("No migration for schema version " + step);
+        }
+    }
+
+    private boolean schemaValid(Statement stmt) throws SQLException {
+        try (ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE name IN "
+                + "('scores', 'idx_scores_name', 'idx_scores_score')")) {
+            return resultSet.next() && resultSet.getInt(1) == 3;
+        }
+    }
 
+    // Placeholder scores so a fresh leaderboard is not empty, sent as one batch inside the migration's transaction
+    private void seedScores(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(UPSERT_SCORE_SQL)) {
             for (int i = 10; i > 0; i--) {
                 String playerName = "Player" + (11 - i);
                 int score = i * 1000;
 
                 pstmt.setString(1, playerName);
                 pstmt.setInt(2, score);
-
-                pstmt.executeUpdate();
+                pstmt.addBatch();
             }
 
-            logger.info("Initial scores populated in the database");
-
-        } catch(SQLException e) {
-            logger.error(e.getMessage());
+            pstmt.executeBatch();
         }
+
+        logger.info("Initial scores populated in the database");
     }
 
-    private Connection connect() {
+    private DbConnection open(String url, SQLiteConfig sqliteConfig) {
         try {
-            return DriverManager.getConnection(DATABASE_URL);
+            return new DbConnection(DriverManager.getConnection(url, sqliteConfig.toProperties()));
         } catch (SQLException e) {
-            logger.error("Failed to connect to database scores.db, ", e);
-            return null;
+            throw new IllegalStateException("Failed to connect to database " + url, e);
         }
     }
 
     public Boolean upsertScore(String name, int score) {
-        String selectSql = "SELECT score FROM scores WHERE name = ?";
-        String updateSql = "UPDATE scores SET score = ? WHERE name = ?";
-        String insertSql = "INSERT INTO scores (name, score) VALUES (?, ?)";
+        return upsertScores(Map.of(name, score));
+    }
+
+    // Upsert a batch of scores (name -> score) in one transaction, so the whole batch costs a single commit
+    public boolean upsertScores(Map<String, Integer> scores) {
+        if (scores.isEmpty()) return true;
+
+        synchronized (db) {
+            Connection conn = db.connection;
+
+            long start = System.nanoTime();
+
+            try {
+                PreparedStatement upsertStmt = db.prepare(UPSERT_SCORE_SQL);
+
+                conn.setAutoCommit(false);
+
+                try {
+                    for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+                        upsertStmt.setString(1, entry.getKey());
+                        upsertStmt.setInt(2, entry.getValue());
+                        upsertStmt.addBatch();
+                    }
 
-        try (Connection conn = connect();
-             PreparedStatement selectStmt = conn.prepareStatement(selectSql);
-             PreparedStatement updateStmt = conn.prepareStatement(updateSql);
-             PreparedStatement insertStmt = conn.prepareStatement(insertSql)) {
+                    int[] updated = upsertStmt.executeBatch();
 
-            selectStmt.setString(1, name);
-            ResultSet resultSet = selectStmt.executeQuery();
+                    conn.commit();
 
-            if (resultSet.next()) {
-                int currentScore = resultSet.getInt("score");
+                    metrics.databaseQuery("upsert_scores", System.nanoTime() - start);
 
-                if (score > currentScore) {
-                    updateStmt.setInt(1, score);
-                    updateStmt.setString(2, name);
-                    updateStmt.executeUpdate();
+                    int newBests = offerNewBests(scores, updated);
 
-                    logger.info("Updated score for " + name + " to " + score);
+                    logger.debug("Upserted {} scores, {} were new bests", scores.size(), newBests);
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
                 }
-            } else {
-                insertStmt.setString(1, name);
-                insertStmt.setInt(2, score);
-                insertStmt.executeUpdate();
 
-                logger.info("Inserted new score for " + name + ": " + score);
+                return true;
+            } catch (SQLException e) {
+                logger.error("Failed to upsert scores for {}", scores.keySet(), e);
             }
-            return true;
-        } catch (SQLException e) {
-            logger.error("Failed to upsert score for " + name, e);
         }
         return false;
     }
 
+    // Pass the rows the upsert actually changed on to the leaderboard, returns how many there were. The update
+    // counts line up with the map's iteration order, which is the order the batch was built in
+    private int offerNewBests(Map<String, Integer> scores, int[] updated) {
+        int count = 0;
+        int i = 0;
+
+        for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+            int rows = updated[i++];
+
+            if (rows > 0 || rows == Statement.SUCCESS_NO_INFO) {
+                ranking.put(entry.getKey(), entry.getValue());
+                leaderboard.offer(entry.getKey(), entry.getValue());
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    // Read every best score into the ranking once, the leaderboard is then just its first N entries
+    private void loadScores() {
+        synchronized (db) {
+            try (ResultSet resultSet = db.prepare(SELECT_ALL_SCORES_SQL).executeQuery()) {
+                while (resultSet.next()) {
+                    ranking.put(resultSet.getString("name"), resultSet.getInt("score"));
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to load scores from database, ", e);
+            }
+        }
+
+        Map<String, Integer> top = new LinkedHashMap<>();
+
+        for (ScoreRanking.Ranked ranked : ranking.range(0, leaderboard.getCapacity())) {
+            top.put(ranked.getName(), ranked.getScore());
+        }
+
+        leaderboard.load(top);
+
+        logger.info("Loaded {} scores, top {} in the leaderboard", ranking.size(), top.size());
+    }
+
+    // The cached top N, served from memory
     public String getScores() {
-        String sql = "SELECT name, score FROM scores ORDER BY score DESC";
+        return leaderboard.getPayload();
+    }
+
+    // One page of the full ranking as name:score lines, offset is zero-based
+    public String getScores(int offset, int limit) {
         StringBuilder scores = new StringBuilder();
 
-        try (Connection conn = connect();
-             PreparedStatement preparedStmt = conn.prepareStatement(sql);
-             ResultSet resultSet = preparedStmt.executeQuery()) {
+        for (ScoreRanking.Ranked ranked : ranking.range(offset, limit)) {
+            scores.append(ranked.getName()).append(":").append(ranked.getScore()).append("\n");
+        }
+
+        return scores.toString();
+    }
+
+    // "<position> <total>" followed by position:name:score lines for the player and up to radius neighbours
+    // either side, positions counting from 1. Null if the player has no score
+    public String getRank(String name, int radius) {
+        int rank = ranking.rank(name);
+
+        if (rank < 0) return null;
+
+        StringBuilder result = new StringBuilder();
+        result.append(rank + 1).append(" ").append(ranking.size()).append("\n");
+
+        int from = Math.max(0, rank - radius);
 
-            while (resultSet.next()) {
-                scores.append(resultSet.getString("name")).append(":").append(resultSet.getInt("score")).append("\n");
+        for (ScoreRanking.Ranked ranked : ranking.range(from, rank - from + radius + 1)) {
+            result.append(ranked.getPosition() + 1).append(":").append(ranked.getName()).append(":")
+                    .append(ranked.getScore()).append("\n");
+        }
+
+        return result.toString();
+    }
+
+    @Override
+    public void close() {
+        synchronized (db) {
+            try {
+                db.connection.close();
+            } catch (SQLException e) {
+                logger.warn("Failed to close database connection, {}", e.getMessage());
             }
-        } catch (SQLException e) {
-            logger.error("Failed to retrieve scores from database, " + e);
         }
 
-        return scores.toString();
+        logger.info("Database connection closed");
+    }
+
+    // A connection with its prepared statements cached by SQL, only used by one thread at a time
+    private static class DbConnection {
+        private final Connection connection;
+
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private DbConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        private PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+
+            return statement;
+        }
     }
 }
@@ -0,0 +1,207 @@
+package websocket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+// Every player's best score in an order-statistic tree (a treap with subtree sizes), ordered like the
+// leaderboard: highest score first, ties by name. Finding a player's position, or the entries at any
+// position, takes O(log n) however many scores have been recorded
+public class ScoreRanking {
+
+    private final Map<String, Integer> scores = new HashMap<>();
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    private Node root;
+
+    public synchronized int size() {
+        return scores.size();
+    }
+
+    // Set a player's score, replacing any previous entry
+    public synchronized void put(String name, int score) {
+        Integer previous = scores.put(name, score);
+
+        if (previous != null) root = remove(root, name, previous);
+
+        Node[] parts = split(root, name, score);
+
+        root = merge(merge(parts[0], new Node(name, score, random.nextInt())), parts[1]);
+    }
+
+    // Zero-based position of the player, or -1 if they have no score
+    public synchronized int rank(String name) {
+        Integer score = scores.get(name);
+
+        if (score == null) return -1;
+
+        int rank = 0;
+        Node node = root;
+
+        while (node != null) {
+            int cmp = compare(name, score, node);
+
+            if (cmp < 0) {
+                node = node.left;
+            } else if (cmp > 0) {
+                rank += size(node.left) + 1;
+                node = node.right;
+            } else {
+                return rank + size(node.left);
+            }
+        }
+
+        return -1;
+    }
+
+    // Up to limit entries starting at the zero-based position offset
+    public synchronized List<Ranked> range(int offset, int limit) {
+        List<Ranked> page = new ArrayList<>(Math.max(0, Math.min(limit, size() - offset)));
+
+        for (int position = Math.max(0, offset); position < size() && page.size() < limit; position++) {
+            Node node = select(position);
+
+            page.add(new Ranked(position, node.name, node.score));
+        }
+
+        return page;
+    }
+
+    private Node select(int position) {
+        Node node = root;
+
+        while (node != null) {
+            int leftSize = size(node.left);
+
+            if (position < leftSize) {
+                node = node.left;
+            } else if (position > leftSize) {
+                position -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node;
+            }
+        }
+
+        throw new IndexOutOfBoundsException("No entry at position " + position);
+    }
+
+    // Split into nodes ordered before (name, score) and the rest
+    private Node[] split(Node node, String name, int score) {
+        if (node == null) return new Node[]{null, null};
+
+        if (compare(name, score, node) > 0) {
+            Node[] parts = split(node.right, name, score);
+            node.right = parts[0];
+            node.update();
+
+            return new Node[]{node, parts[1]};
+        }
+
+        Node[] parts = split(node.left, name, score);
+        node.left = parts[1];
+        node.update();
+
+        return new Node[]{parts[0], node};
+    }
+
+    // Every node in left must be ordered before every node in right
+    private Node merge(Node left, Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+
+            return left;
+        }
+
+        right.left = merge(left, right.left);
+        right.update();
+
+        return right;
+    }
+
+    private Node remove(Node node, String name, int score) {
+        if (node == null) return null;
+
+        int cmp = compare(name, score, node);
+
+        if (cmp == 0) return merge(node.left, node.right);
+
+        if (cmp < 0) {
+            node.left = remove(node.left, name, score);
+        } else {
+            node.right = remove(node.right, name, score);
+        }
+
+        node.update();
+
+        return node;
+    }
+
+    private static int compare(String name, int score, Node node) {
+        int byScore = Integer.compare(node.score, score);
+
+        return byScore != 0 ? byScore : name.compareTo(node.name);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    // A player's position (zero-based) alongside their score
+    public static class Ranked {
+        private final int position;
+
+        private final String name;
+
+        private final int score;
+
+        public Ranked(int position, String name, int score) {
+            this.position = position;
+            this.name = name;
+            this.score = score;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+
+    private static class Node {
+        private final String name;
+
+        private final int score;
+
+        private final int priority;
+
+        private int size = 1;
+
+        private Node left;
+
+        private Node right;
+
+        private Node(String name, int score, int priority) {
+            this.name = name;
+            this.score = score;
+            this.priority = priority;
+        }
+
+        private void update() {
+            size = 1 + ScoreRanking.size(left) + ScoreRanking.size(right);
+        }
+    }
+}
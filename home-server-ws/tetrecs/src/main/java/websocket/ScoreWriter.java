@@ -0,0 +1,209 @@
+package websocket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Write-behind queue for high score submissions. WebSocket callbacks only enqueue, a single background thread
+// drains whatever has queued up and commits it to the database as one transaction, then reports the outcome
+// of each submission through its callback. The queue is bounded, submit() refuses work once it is full
+public class ScoreWriter implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(ScoreWriter.class);
+
+    private final ScoreDatabase scoreDatabase;
+
+    private final BlockingQueue<Submission> queue;
+
+    private final int batchSize;
+
+    private final Thread thread;
+
+    // Guards running against submit(), so nothing can be queued after close() has decided to stop
+    private final Object stateLock = new Object();
+
+    private volatile boolean running = true;
+
+    private final LongAdder submitted = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder committed = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder commitNanos = new LongAdder();
+
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+
+    private volatile long lastCommitNanos;
+
+    public ScoreWriter(ScoreDatabase scoreDatabase, int capacity, int batchSize) {
+        this.scoreDatabase = scoreDatabase;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+
+        this.thread = new Thread(this::run, "score-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Queue a score, onCommit receives true once it is durably written or false if the write failed.
+    // Returns false straight away if the queue is full
+    public boolean submit(String name, int score, Consumer<Boolean> onCommit) {
+        boolean queued;
+
+        // offer() never blocks, so holding the lock across it is cheap
+        synchronized (stateLock) {
+            queued = running && queue.offer(new Submission(name, score, onCommit));
+        }
+
+        if (!queued) {
+            rejected.increment();
+            return false;
+        }
+
+        submitted.increment();
+        return true;
+    }
+
+    private void run() {
+        List<Submission> batch = new ArrayList<>(batchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Submission first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null) continue;
+
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Submission> batch) {
+        // Several submissions for one player collapse to their best score, the upsert only keeps the max anyway
+        Map<String, Integer> bestScores = new HashMap<>();
+
+        for (Submission submission : batch) {
+            bestScores.merge(submission.name, submission.score, Math::max);
+        }
+
+        long start = System.nanoTime();
+        boolean success = scoreDatabase.upsertScores(bestScores);
+        long elapsed = System.nanoTime() - start;
+
+        batches.increment();
+        commitNanos.add(elapsed);
+        maxCommitNanos.accumulateAndGet(elapsed, Math::max);
+        lastCommitNanos = elapsed;
+
+        (success ? committed : failed).add(batch.size());
+
+        logger.debug("Committed {} scores in {}us, {} still queued", batch.size(),
+                TimeUnit.NANOSECONDS.toMicros(elapsed), queue.size());
+
+        for (Submission submission : batch) {
+            try {
+                submission.onCommit.accept(success);
+            } catch (RuntimeException e) {
+                logger.warn("Score commit callback failed for {}, {}", submission.name, e.getMessage());
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getCommitted() {
+        return committed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getTotalCommitNanos() {
+        return commitNanos.sum();
+    }
+
+    public long getMaxCommitNanos() {
+        return maxCommitNanos.get();
+    }
+
+    public long getLastCommitNanos() {
+        return lastCommitNanos;
+    }
+
+    // Stop taking submissions and wait for everything already queued to be written. If interrupted while
+    // waiting, the writer carries on draining in the background and the interrupt is kept for the caller
+    @Override
+    public void close() {
+        // Every submission accepted before this is in the queue, and the writer drains the queue before it exits
+        synchronized (stateLock) {
+            running = false;
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted waiting for the score writer, {} scores still queued", queue.size());
+            return;
+        }
+
+        logger.info("Score writer stopped after {} commits ({} failed, {} rejected)", getCommitted(), getFailed(),
+                getRejected());
+    }
+
+    private static class Submission {
+        private final String name;
+
+        private final int score;
+
+        private final Consumer<Boolean> onCommit;
+
+        private Submission(String name, int score, Consumer<Boolean> onCommit) {
+            this.name = name;
+            this.score = score;
+            this.onCommit = onCommit;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Startup settings for the server, read from -Dtetrecs.* system properties so a deployment can be tuned
+// without rebuilding. Anything not set keeps the default below.
+public class ServerConfig {
+    private String host = "0.0.0.0";
+
+    private int port = 8887;
+
+    // Java-WebSocket worker threads decoding frames and running the callbacks
+    private int decoders = Runtime.getRuntime().availableProcessors();
+
+    // "inline" runs every command on the WebSocket worker threads, "virtual" moves blocking ones to virtual threads
+    private String executionMode = "inline";
+
+    private String databaseUrl = "jdbc:sqlite:websocket_tetrecs_scores.db";
+
+    private String databaseJournalMode = "WAL";
+
+    private String databaseSynchronous = "NORMAL";
+
+    private int databaseBusyTimeout = 5000;
+
+    // HISCORE submissions waiting for the background writer, beyond this they are refused with an ERROR
+    private int scoreQueueCapacity = 1024;
+
+    // Most submissions the writer commits in one transaction
+    private int scoreBatchSize = 64;
+
+    // Number of top scores kept in memory and returned by HISCORES
+    private int leaderboardSize = 50;
+
+    // Largest page HISCORES <offset> <limit> will return
+    private int scoresMaxPageSize = 100;
+
+    // Neighbours either side of the player in a RANK reply
+    private int rankRadius = 2;
+
+    // How often lobbies with score or lives changes get a SCORES snapshot
+    private long scoresTickMillis = 100;
+
+    // Pieces sent per PIECES frame
+    private int pieceBatchSize = 32;
+
+    // Lobby state is saved here so a restart keeps lobbies and games. Empty, the default, turns snapshots off.
+    // The file holds every player's resume token in plain text, so keep it somewhere only the server can read
+    private String snapshotFile = "";
+
+    // How often the snapshot is rewritten, skipped when nothing changed since the last one
+    private long snapshotIntervalMillis = 5000;
+
+    // How long a player restored from a snapshot waits for its client to RESUME before being removed
+    private long resumeGraceMillis = 60000;
+
+    // How long a player whose connection dropped keeps its place for its client to RESUME, 0 removes it at once
+    private long disconnectGraceMillis = 15000;
+
+    // Most lobbies a paged LIST returns, larger limits are capped to this
+    private int listMaxPageSize = 100;
+
+    // Most lobbies that may exist at once, 0 for no limit
+    private int maxLobbies = 10000;
+
+    // Most players in one lobby, 0 for no limit
+    private int maxPlayersPerLobby = 64;
+
+    // A lobby is reclaimed as soon as its last player leaves. One created but never joined is given this long
+    private long lobbyCreateGraceMillis = 30000;
+
+    // Lobbies with no broadcasts or score changes for this long are closed and their players removed, 0 never
+    private long lobbyIdleTimeoutMillis = 30 * 60 * 1000;
+
+    // How often the reaper looks for never-joined and idle lobbies
+    private long lobbyReapIntervalMillis = 5000;
+
+    // Frames queued for a connection beyond which score snapshots are coalesced for it rather than queued
+    private int backpressureDegradeFrames = 64;
+
+    // Frames or bytes queued for a connection beyond which it is disconnected as a slow consumer
+    private int backpressureMaxFrames = 1024;
+
+    private long backpressureMaxBytes = 4 * 1024 * 1024;
+
+    // High-rate commands (SCORE, LIVES, PIECE, ...) log one received frame in this many at debug
+    private int logSampleEvery = 100;
+
+    // Prometheus endpoint, on loopback by default so only local scrapers reach it. Port 0 turns it off
+    private String metricsHost = "127.0.0.1";
+
+    private int metricsPort = 9887;
+
+    // WebSocket URIs of every node in the cluster, this one included, e.g. ws://10.0.0.1:8887. Empty runs a
+    // single standalone node. Every node must be given the same list, it decides which node owns each lobby
+    private List<String> clusterNodes = List.of();
+
+    // This node's own entry in clusterNodes
+    private String clusterSelf = "";
+
+    // How often links to peers that are down are retried
+    private long clusterReconnectMillis = 2000;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+
+        config.setHost(System.getProperty("tetrecs.host", config.getHost()));
+        config.setPort(Integer.getInteger("tetrecs.port", config.getPort()));
+        config.setDecoders(Integer.getInteger("tetrecs.decoders", config.getDecoders()));
+        config.setExecutionMode(System.getProperty("tetrecs.execution", config.getExecutionMode()));
+        config.setDatabaseUrl(System.getProperty("tetrecs.db.url", config.getDatabaseUrl()));
+        config.setDatabaseJournalMode(System.getProperty("tetrecs.db.journalMode", config.getDatabaseJournalMode()));
+        config.setDatabaseSynchronous(System.getProperty("tetrecs.db.synchronous", config.getDatabaseSynchronous()));
+        config.setDatabaseBusyTimeout(Integer.getInteger("tetrecs.db.busyTimeout", config.getDatabaseBusyTimeout()));
+        config.setScoreQueueCapacity(Integer.getInteger("tetrecs.scores.queueCapacity", config.getScoreQueueCapacity()));
+        config.setScoreBatchSize(Integer.getInteger("tetrecs.scores.batchSize", config.getScoreBatchSize()));
+        config.setLeaderboardSize(Integer.getInteger("tetrecs.scores.leaderboardSize", config.getLeaderboardSize()));
+        config.setScoresMaxPageSize(Integer.getInteger("tetrecs.scores.maxPageSize", config.getScoresMaxPageSize()));
+        config.setRankRadius(Integer.getInteger("tetrecs.scores.rankRadius", config.getRankRadius()));
+        config.setScoresTickMillis(Long.getLong("tetrecs.scores.tickMillis", config.getScoresTickMillis()));
+        config.setPieceBatchSize(Integer.getInteger("tetrecs.pieces.batchSize", config.getPieceBatchSize()));
+        config.setSnapshotFile(System.getProperty("tetrecs.snapshot.file", config.getSnapshotFile()));
+        config.setSnapshotIntervalMillis(Long.getLong("tetrecs.snapshot.intervalMillis", config.getSnapshotIntervalMillis()));
+        config.setResumeGraceMillis(Long.getLong("tetrecs.resume.graceMillis", config.getResumeGraceMillis()));
+        config.setDisconnectGraceMillis(Long.getLong("tetrecs.resume.disconnectGraceMillis", config.getDisconnectGraceMillis()));
+        config.setListMaxPageSize(Integer.getInteger("tetrecs.list.maxPageSize", config.getListMaxPageSize()));
+        config.setMaxLobbies(Integer.getInteger("tetrecs.lobby.max", config.getMaxLobbies()));
+        config.setMaxPlayersPerLobby(Integer.getInteger("tetrecs.lobby.maxPlayers", config.getMaxPlayersPerLobby()));
+        config.setLobbyCreateGraceMillis(Long.getLong("tetrecs.lobby.createGraceMillis", config.getLobbyCreateGraceMillis()));
+        config.setLobbyIdleTimeoutMillis(Long.getLong("tetrecs.lobby.idleTimeoutMillis", config.getLobbyIdleTimeoutMillis()));
+        config.setLobbyReapIntervalMillis(Long.getLong("tetrecs.lobby.reapIntervalMillis", config.getLobbyReapIntervalMillis()));
+        config.setBackpressureDegradeFrames(Integer.getInteger("tetrecs.backpressure.degradeFrames", config.getBackpressureDegradeFrames()));
+        config.setBackpressureMaxFrames(Integer.getInteger("tetrecs.backpressure.maxFrames", config.getBackpressureMaxFrames()));
+        config.setBackpressureMaxBytes(Long.getLong("tetrecs.backpressure.maxBytes", config.getBackpressureMaxBytes()));
+        config.setLogSampleEvery(Integer.getInteger("tetrecs.log.sampleEvery", config.getLogSampleEvery()));
+        config.setMetricsHost(System.getProperty("tetrecs.metrics.host", config.getMetricsHost()));
+        config.setMetricsPort(Integer.getInteger("tetrecs.metrics.port", config.getMetricsPort()));
+        config.setClusterNodes(parseList(System.getProperty("tetrecs.cluster.nodes", "")));
+        config.setClusterSelf(System.getProperty("tetrecs.cluster.self", config.getClusterSelf()));
+        config.setClusterReconnectMillis(Long.getLong("tetrecs.cluster.reconnectMillis", config.getClusterReconnectMillis()));
+
+        return config;
+    }
+
+    // Comma separated, blank entries dropped
+    private static List<String> parseList(String value) {
+        List<String> list = new ArrayList<>();
+
+        for (String entry : value.split(",")) {
+            if (!entry.isBlank()) list.add(entry.trim());
+        }
+
+        return List.copyOf(list);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getDecoders() {
+        return decoders;
+    }
+
+    public String getExecutionMode() {
+        return executionMode;
+    }
+
+    public String getDatabaseUrl() {
+        return databaseUrl;
+    }
+
+    public String getDatabaseJournalMode() {
+        return databaseJournalMode;
+    }
+
+    public String getDatabaseSynchronous() {
+        return databaseSynchronous;
+    }
+
+    public int getDatabaseBusyTimeout() {
+        return databaseBusyTimeout;
+    }
+
+    public int getScoreQueueCapacity() {
+        return scoreQueueCapacity;
+    }
+
+    public int getScoreBatchSize() {
+        return scoreBatchSize;
+    }
+
+    public int getLeaderboardSize() {
+        return leaderboardSize;
+    }
+
+    public int getScoresMaxPageSize() {
+        return scoresMaxPageSize;
+    }
+
+    public int getRankRadius() {
+        return rankRadius;
+    }
+
+    public long getScoresTickMillis() {
+        return scoresTickMillis;
+    }
+
+    public int getPieceBatchSize() {
+        return pieceBatchSize;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+
+    public long getResumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    public long getDisconnectGraceMillis() {
+        return disconnectGraceMillis;
+    }
+
+    public int getListMaxPageSize() {
+        return listMaxPageSize;
+    }
+
+    public int getMaxLobbies() {
+        return maxLobbies;
+    }
+
+    public int getMaxPlayersPerLobby() {
+        return maxPlayersPerLobby;
+    }
+
+    public long getLobbyCreateGraceMillis() {
+        return lobbyCreateGraceMillis;
+    }
+
+    public long getLobbyIdleTimeoutMillis() {
+        return lobbyIdleTimeoutMillis;
+    }
+
+    public long getLobbyReapIntervalMillis() {
+        return lobbyReapIntervalMillis;
+    }
+
+    public int getBackpressureDegradeFrames() {
+        return backpressureDegradeFrames;
+    }
+
+    public int getBackpressureMaxFrames() {
+        return backpressureMaxFrames;
+    }
+
+    public long getBackpressureMaxBytes() {
+        return backpressureMaxBytes;
+    }
+
+    public int getLogSampleEvery() {
+        return logSampleEvery;
+    }
+
+    public String getMetricsHost() {
+        return metricsHost;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    public String getClusterSelf() {
+        return clusterSelf;
+    }
+
+    public long getClusterReconnectMillis() {
+        return clusterReconnectMillis;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setDecoders(int decoders) {
+        this.decoders = decoders;
+    }
+
+    public void setExecutionMode(String executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    public void setDatabaseUrl(String databaseUrl) {
+        this.databaseUrl = databaseUrl;
+    }
+
+    public void setDatabaseJournalMode(String databaseJournalMode) {
+        this.databaseJournalMode = databaseJournalMode;
+    }
+
+    public void setDatabaseSynchronous(String databaseSynchronous) {
+        this.databaseSynchronous = databaseSynchronous;
+    }
+
+    public void setDatabaseBusyTimeout(int databaseBusyTimeout) {
+        this.databaseBusyTimeout = databaseBusyTimeout;
+    }
+
+    public void setScoreQueueCapacity(int scoreQueueCapacity) {
+        this.scoreQueueCapacity = scoreQueueCapacity;
+    }
+
+    public void setScoreBatchSize(int scoreBatchSize) {
+        this.scoreBatchSize = scoreBatchSize;
+    }
+
+    public void setLeaderboardSize(int leaderboardSize) {
+        this.leaderboardSize = leaderboardSize;
+    }
+
+    public void setScoresMaxPageSize(int scoresMaxPageSize) {
+        this.scoresMaxPageSize = scoresMaxPageSize;
+    }
+
+    public void setRankRadius(int rankRadius) {
+        this.rankRadius = rankRadius;
+    }
+
+    public void setScoresTickMillis(long scoresTickMillis) {
+        this.scoresTickMillis = scoresTickMillis;
+    }
+
+    public void setPieceBatchSize(int pieceBatchSize) {
+        this.pieceBatchSize = pieceBatchSize;
+    }
+
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public void setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    public void setResumeGraceMillis(long resumeGraceMillis) {
+        this.resumeGraceMillis = resumeGraceMillis;
+    }
+
+    public void setDisconnectGraceMillis(long disconnectGraceMillis) {
+        this.disconnectGraceMillis = disconnectGraceMillis;
+    }
+
+    public void setListMaxPageSize(int listMaxPageSize) {
+        this.listMaxPageSize = listMaxPageSize;
+    }
+
+    public void setMaxLobbies(int maxLobbies) {
+        this.maxLobbies = maxLobbies;
+    }
+
+    public void setMaxPlayersPerLobby(int maxPlayersPerLobby) {
+        this.maxPlayersPerLobby = maxPlayersPerLobby;
+    }
+
+    public void setLobbyCreateGraceMillis(long lobbyCreateGraceMillis) {
+        this.lobbyCreateGraceMillis = lobbyCreateGraceMillis;
+    }
+
+    public void setLobbyIdleTimeoutMillis(long lobbyIdleTimeoutMillis) {
+        this.lobbyIdleTimeoutMillis = lobbyIdleTimeoutMillis;
+    }
+
+    public void setLobbyReapIntervalMillis(long lobbyReapIntervalMillis) {
+        this.lobbyReapIntervalMillis = lobbyReapIntervalMillis;
+    }
+
+    public void setBackpressureDegradeFrames(int backpressureDegradeFrames) {
+        this.backpressureDegradeFrames = backpressureDegradeFrames;
+    }
+
+    public void setBackpressureMaxFrames(int backpressureMaxFrames) {
+        this.backpressureMaxFrames = backpressureMaxFrames;
+    }
+
+    public void setBackpressureMaxBytes(long backpressureMaxBytes) {
+        this.backpressureMaxBytes = backpressureMaxBytes;
+    }
+
+    public void setLogSampleEvery(int logSampleEvery) {
+        this.logSampleEvery = logSampleEvery;
+    }
+
+    public void setMetricsHost(String metricsHost) {
+        this.metricsHost = metricsHost;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public void setClusterNodes(List<String> clusterNodes) {
+        this.clusterNodes = clusterNodes;
+    }
+
+    public void setClusterSelf(String clusterSelf) {
+        this.clusterSelf = clusterSelf;
+    }
+
+    public void setClusterReconnectMillis(long clusterReconnectMillis) {
+        this.clusterReconnectMillis = clusterReconnectMillis;
+    }
+}
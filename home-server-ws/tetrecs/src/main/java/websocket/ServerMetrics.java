@@ -0,0 +1,269 @@
+package websocket;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and histograms recorded while the server runs. Everything here is a LongAdder or one of the
+// lock-free histograms, so recording costs a few uncontended adds and can stay on in production.
+// Maps are sorted so scrapes list commands and queries in a stable order. Gauges that can be read straight
+// off the server (connections, lobbies) are not kept here, the server adds them when the metrics are scraped
+public class ServerMetrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, CommandMetrics> commands = new ConcurrentSkipListMap<>();
+
+    private final LongAdder unknownCommands = new LongAdder();
+
+    private final LongAdder framesSent = new LongAdder();
+
+    private final LongAdder bytesSent = new LongAdder();
+
+    private final SizeHistogram broadcastRecipients = new SizeHistogram();
+
+    private final LongAdder redirects = new LongAdder();
+
+    private final LongAdder snapshotsWritten = new LongAdder();
+
+    private final LongAdder snapshotFailures = new LongAdder();
+
+    // Size and duration of the last lobby snapshot written
+    private volatile long snapshotBytes;
+
+    private volatile long snapshotNanos;
+
+    private final LongAdder detached = new LongAdder();
+
+    private final LongAdder resumes = new LongAdder();
+
+    private final LongAdder resumesExpired = new LongAdder();
+
+    private final LongAdder lobbiesCreated = new LongAdder();
+
+    private final LongAdder lobbiesReclaimedEmpty = new LongAdder();
+
+    private final LongAdder lobbiesReclaimedUnused = new LongAdder();
+
+    private final LongAdder lobbiesReclaimedIdle = new LongAdder();
+
+    private final LongAdder playersReclaimed = new LongAdder();
+
+    private final LongAdder lobbyLimitRejections = new LongAdder();
+
+    private final LongAdder lobbyFullRejections = new LongAdder();
+
+    private final LongAdder snapshotsCoalesced = new LongAdder();
+
+    private final LongAdder slowConsumersDropped = new LongAdder();
+
+    private final Map<String, LatencyHistogram> databaseQueries = new ConcurrentSkipListMap<>();
+
+    // Called once per command when it is registered, the dispatcher keeps the returned instance
+    public CommandMetrics command(String command) {
+        return commands.computeIfAbsent(command, CommandMetrics::new);
+    }
+
+    public void unknownCommand() {
+        unknownCommands.increment();
+    }
+
+    public void sent(int frames, long bytes) {
+        framesSent.add(frames);
+        bytesSent.add(bytes);
+    }
+
+    public void broadcast(int recipients, long bytesPerFrame) {
+        broadcastRecipients.record(recipients);
+        sent(recipients, bytesPerFrame * recipients);
+    }
+
+    public void snapshotWritten(int bytes, long nanos) {
+        snapshotsWritten.increment();
+        snapshotBytes = bytes;
+        snapshotNanos = nanos;
+    }
+
+    public void snapshotFailed() {
+        snapshotFailures.increment();
+    }
+
+    // A dropped connection whose player was kept for its client to RESUME
+    public void detached() {
+        detached.increment();
+    }
+
+    public void resumed() {
+        resumes.increment();
+    }
+
+    // A detached player removed because its client never came back
+    public void resumeExpired() {
+        resumesExpired.increment();
+    }
+
+    // CREATE or JOIN for a lobby another cluster node owns
+    public void redirect() {
+        redirects.increment();
+    }
+
+    public void lobbyCreated() {
+        lobbiesCreated.increment();
+    }
+
+    // Last player left
+    public void lobbyReclaimedEmpty() {
+        lobbiesReclaimedEmpty.increment();
+    }
+
+    // Created but nobody joined within the grace period
+    public void lobbyReclaimedUnused() {
+        lobbiesReclaimedUnused.increment();
+    }
+
+    // Closed by the reaper with players still in it
+    public void lobbyReclaimedIdle(int players) {
+        lobbiesReclaimedIdle.increment();
+        playersReclaimed.add(players);
+    }
+
+    public void lobbyLimitRejected() {
+        lobbyLimitRejections.increment();
+    }
+
+    public void lobbyFullRejected() {
+        lobbyFullRejections.increment();
+    }
+
+    public void snapshotCoalesced() {
+        snapshotsCoalesced.increment();
+    }
+
+    public void slowConsumerDropped() {
+        slowConsumersDropped.increment();
+    }
+
+    public void databaseQuery(String query, long nanos) {
+        databaseQueries.computeIfAbsent(query, key -> new LatencyHistogram()).record(nanos);
+    }
+
+    public void format(StringBuilder out) {
+        header(out, "tetrecs_commands_total", "counter", "Commands handled, by command");
+        for (CommandMetrics command : commands.values()) {
+            out.append("tetrecs_commands_total{command=\"").append(command.name).append("\"} ")
+                    .append(command.latency.getCount()).append("\n");
+        }
+
+        header(out, "tetrecs_command_duration_seconds", "summary", "Time spent handling a command, by command");
+        for (CommandMetrics command : commands.values()) {
+            summary(out, "tetrecs_command_duration_seconds", "command=\"" + command.name + "\"", command.latency);
+        }
+
+        counter(out, "tetrecs_unknown_commands_total", "Text frames that matched no command", unknownCommands.sum());
+        counter(out, "tetrecs_outbound_frames_total", "Frames sent to clients, counting each broadcast recipient", framesSent.sum());
+        counter(out, "tetrecs_outbound_bytes_total", "Payload bytes sent to clients, before WebSocket framing", bytesSent.sum());
+
+        counter(out, "tetrecs_redirects_total", "CREATE and JOIN sent on to the cluster node owning the lobby",
+                redirects.sum());
+        counter(out, "tetrecs_lobbies_created_total", "Lobbies created", lobbiesCreated.sum());
+
+        header(out, "tetrecs_lobbies_reclaimed_total", "counter", "Lobbies removed, by why");
+        out.append("tetrecs_lobbies_reclaimed_total{reason=\"empty\"} ").append(lobbiesReclaimedEmpty.sum()).append("\n");
+        out.append("tetrecs_lobbies_reclaimed_total{reason=\"unused\"} ").append(lobbiesReclaimedUnused.sum()).append("\n");
+        out.append("tetrecs_lobbies_reclaimed_total{reason=\"idle\"} ").append(lobbiesReclaimedIdle.sum()).append("\n");
+
+        counter(out, "tetrecs_players_reclaimed_total", "Players removed from lobbies closed for inactivity", playersReclaimed.sum());
+
+        header(out, "tetrecs_lobby_rejections_total", "counter", "CREATE and JOIN refused by the lobby limits, by limit");
+        out.append("tetrecs_lobby_rejections_total{limit=\"lobbies\"} ").append(lobbyLimitRejections.sum()).append("\n");
+        out.append("tetrecs_lobby_rejections_total{limit=\"players\"} ").append(lobbyFullRejections.sum()).append("\n");
+
+        counter(out, "tetrecs_lobby_snapshots_total", "Lobby snapshots written", snapshotsWritten.sum());
+        counter(out, "tetrecs_lobby_snapshot_failures_total", "Lobby snapshots that could not be written", snapshotFailures.sum());
+        gauge(out, "tetrecs_lobby_snapshot_bytes", "Size of the last lobby snapshot", snapshotBytes);
+        gauge(out, "tetrecs_lobby_snapshot_seconds", "Time taken to encode and write the last lobby snapshot", snapshotNanos / 1e9);
+        counter(out, "tetrecs_players_detached_total", "Players kept in their lobby after their connection dropped",
+                detached.sum());
+        counter(out, "tetrecs_resumes_total", "Players taken back by a reconnecting client with RESUME", resumes.sum());
+        counter(out, "tetrecs_resumes_expired_total", "Detached players removed because their client did not RESUME in time",
+                resumesExpired.sum());
+
+        counter(out, "tetrecs_snapshots_coalesced_total", "Scores snapshots held back from a congested connection", snapshotsCoalesced.sum());
+        counter(out, "tetrecs_slow_consumers_dropped_total", "Connections closed for falling too far behind", slowConsumersDropped.sum());
+
+        header(out, "tetrecs_broadcast_recipients", "histogram", "Connections each lobby broadcast went to");
+        broadcastRecipients.format(out, "tetrecs_broadcast_recipients", "");
+
+        header(out, "tetrecs_db_query_duration_seconds", "summary", "Time spent in database work, by query");
+        for (Map.Entry<String, LatencyHistogram> query : databaseQueries.entrySet()) {
+            summary(out, "tetrecs_db_query_duration_seconds", "query=\"" + query.getKey() + "\"", query.getValue());
+        }
+    }
+
+    public static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        out.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+    }
+
+    public static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(" ").append(value).append("\n");
+    }
+
+    public static void counter(StringBuilder out, String name, String help, double value) {
+        header(out, name, "counter", help);
+        out.append(name).append(" ").append(value).append("\n");
+    }
+
+    public static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(" ").append(value).append("\n");
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{").append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getValueAtPercentile(quantile * 100) / 1e9).append("\n");
+        }
+
+        out.append(name).append("_sum{").append(labels).append("} ").append(histogram.getTotal() / 1e9).append("\n");
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append("\n");
+    }
+
+    // UTF-8 length of a text frame without encoding it, frames are almost all ASCII so this is one pass
+    public static long utf8Length(String text) {
+        long length = text.length();
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    length += 1;
+                } else if (Character.isHighSurrogate(c)) {
+                    // The pair is 4 bytes, 2 chars already counted
+                    length += 2;
+                    i++;
+                } else {
+                    length += 2;
+                }
+            }
+        }
+
+        return length;
+    }
+
+    public static class CommandMetrics {
+        private final String name;
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private CommandMetrics(String name) {
+            this.name = name;
+        }
+
+        public void record(long nanos) {
+            latency.record(nanos);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package websocket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts of small sizes (broadcast recipients, lobby members) in fixed power-of-two buckets, matching a
+// Prometheus histogram's le bounds. Bucket counts are not cumulative here, formatting adds them up
+public class SizeHistogram {
+
+    private static final long[] BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    // One extra bucket for anything above the last bound
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    public SizeHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long size) {
+        int bucket = size <= 1 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(size - 1), BOUNDS.length);
+
+        buckets[bucket].increment();
+        count.increment();
+        sum.add(size);
+    }
+
+    // Writes the histogram in Prometheus text format, labels is either empty or "name=\"value\"," style pairs
+    public void format(StringBuilder out, String name, String labels) {
+        long cumulative = 0;
+
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+
+            out.append(name).append("_bucket{").append(labels).append("le=\"")
+                    .append(i < BOUNDS.length ? Long.toString(BOUNDS[i]) : "+Inf").append("\"} ")
+                    .append(cumulative).append("\n");
+        }
+
+        String braces = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+
+        out.append(name).append("_sum").append(braces).append(" ").append(sum.sum()).append("\n");
+        out.append(name).append("_count").append(braces).append(" ").append(count.sum()).append("\n");
+    }
+}